@@ -44,21 +44,35 @@ import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-// import dasp.algorithms.AllByAllAlignment;
+import dasp.algorithms.AllByAllAlignment;
+import dasp.algorithms.Align;
+import dasp.algorithms.CachingAlign;
 import dasp.algorithms.FastAFileSearcher;
+import dasp.algorithms.FragmentSimilarityMatrix;
 import dasp.algorithms.DBSearch;
 import dasp.algorithms.ClustalAlign;
 import dasp.algorithms.NullAlign;
+import dasp.algorithms.ProgressiveAlign;
 import dasp.algorithms.RyansPSSMSearch;
 import dasp.model.ActiveSiteProfile;
 import dasp.model.ActiveSiteSignature;
 import dasp.model.Alignment;
 import dasp.model.DBSearchResult;
+import dasp.model.DaspStructure;
 import dasp.model.PSSM;
 import dasp.model.SearchResult;
+import dasp.model.StructurePrefetcher;
 
 /**
  * The DASP mainline.  Dasp expects as input a file which contains a series of PDB identifiers
@@ -90,12 +104,24 @@ public class Dasp {
 	private static String inputFile = null;
 	private static double cutoff = 1e-50;
 	private static double radius = 10;
+	private static double[] sweepRadii = null;
 	private static String outputFile = null;
 	private static boolean vFlag = false;
   private static File signaturePath = null;
   private static File profilePath = null;
+  private static String addPath = null;
+  private static String[] removeIds = null;
+  private static File updatedProfilePath = null;
   private static boolean includeX = false;
-  private static int numThreads = 2;
+  private static int numThreads = Runtime.getRuntime().availableProcessors();
+  private static int ioThreads = 4;
+  private static Align alignMethod = new ClustalAlign();
+  private static File alignCacheDir = null;
+  private static CachingAlign alignCache = null;
+  private static int searchCandidates = 0;
+  private static long searchMillis = 10000;
+  private static long searchNodes = 10000000;
+  private static FastAFileSearcher.ExecutionMode searchMode = FastAFileSearcher.ExecutionMode.POOL;
 
 	public Dasp () {
 	}
@@ -106,13 +132,27 @@ public class Dasp {
 	 *
 	 * <b>-i</b> <i>filename</i>	The name of the input file
 	 * <b>-r</b> <i>radius</i>	The radius for inclusion into the active site signature
+	 * <b>-R</b> <i>radii</i>	Build and score the profiles for a comma-separated list of radii
 	 * <b>-c</b> <i>cutoff</i>	The cutoff value for searching the sequence database
 	 * <b>-p</b> <i>pdbDatabase</i>	The path to the pdb database
 	 * <b>-o</b> <i>filename</i>	The file to wite the active stie profile into
 	 * <b>-d</b> <i>database</i>	The database to use for the sequence search
 	 * <b>-t</b> <i>threads</i>	The number of threads to use for the database search
+	 * <b>-e</b> <i>mode</i>	How to run the database search threads: pool, forkjoin, or virtual (forkjoin, with the database read on a virtual thread)
+	 * <b>-C</b> <i>directory</i>	Cache the residue data from the PDB files in this directory
+	 * <b>-F</b> <i>threads</i>	The number of threads to read PDB files ahead with (0 to turn it off)
+	 * <b>-N</b> <i>radius</i>	Find the residues near the key residues with contact maps out to this radius
+	 * <b>-A</b> <i>aligner</i>	How to align the signatures: clustal (ClustalW) or progressive (built in)
+	 * <b>-w</b> <i>path</i>	The ClustalW program to run (default /usr/local/bin/clustalw2)
+	 * <b>-L</b> <i>directory</i>	Keep the fragment alignments in this directory so later runs can reuse them
+	 * <b>-B</b> <i>candidates</i>	Search for the best way to group the non-key fragments, and align and score this many of the best groupings
+	 * <b>-T</b> <i>seconds</i>	The most time to spend on that search (default 10)
+	 * <b>-n</b> <i>nodes</i>	The most partial groupings that search looks at (default 10000000)
 	 * <b>-P</b> <i>profile file</i>  Directly input the profile
 	 * <b>-S</b> <i>signature file</i>  Directly input the signatures
+	 * <b>-a</b> <i>filename</i>	Add the structures in this input file to the profile given with -P
+	 * <b>-D</b> <i>ids</i>	Remove these (comma-separated) structures from the profile given with -P
+	 * <b>-U</b> <i>filename</i>	Write the profile to this file after adding or removing structures
 	 * <b>-x</b> include 'X's in the PSSM
 	 * <b>-h</b> the help text
 	 */
@@ -124,7 +164,7 @@ public class Dasp {
 		//First is always a file name, second is always the number of lines
 		//and the third is always a new profile radius.
 
-		GetOpt opts = new GetOpt(args, "i:c:p:o:d:r:S:P:t:hvx");
+		GetOpt opts = new GetOpt(args, "i:c:p:o:d:r:R:S:P:a:D:U:t:e:C:F:N:A:w:L:B:T:n:hvx");
 
 		int result;
 		while ((result = opts.getopt()) >= 0) {
@@ -142,6 +182,18 @@ public class Dasp {
 				}
 				break;
 
+			case 'R':
+				try {
+					String[] values = opts.optArg.split(",");
+					sweepRadii = new double[values.length];
+					for (int i = 0; i < values.length; i++)
+						sweepRadii[i] = Double.parseDouble(values[i].trim());
+				} catch (Exception e) {
+					System.err.println("Radii argument must be a comma-separated list of floats");
+					System.exit(1);
+				}
+				break;
+
 			case 'c':
 				try {
 					cutoff = new Double(opts.optArg);
@@ -191,6 +243,18 @@ public class Dasp {
 				}
 				break;
 
+			case 'a':
+				addPath = opts.optArg;
+				break;
+
+			case 'D':
+				removeIds = opts.optArg.split(",");
+				break;
+
+			case 'U':
+				updatedProfilePath = new File(opts.optArg);
+				break;
+
 			case 'S':
         String sigFile = opts.optArg;
         try {
@@ -210,6 +274,88 @@ public class Dasp {
         }
         break;
 
+      case 'e':
+        try {
+          searchMode = FastAFileSearcher.parseMode(opts.optArg);
+        } catch (Exception e) {
+          System.err.println("Execution mode must be one of pool, forkjoin, or virtual");
+          System.exit(1);
+        }
+        break;
+
+			case 'C':
+				try {
+					DaspStructure.setCacheDirectory(new File(opts.optArg));
+				} catch (Exception e) {
+					System.err.println("Unable to use cache directory '"+opts.optArg+"': "+e.getMessage());
+					System.exit(1);
+				}
+				break;
+
+			case 'F':
+				try {
+					ioThreads = Integer.parseInt(opts.optArg);
+				} catch (Exception e) {
+					System.err.println("Prefetch threads argument must be an integer");
+					System.exit(1);
+				}
+				break;
+
+			case 'N':
+				try {
+					DaspStructure.setContactRadius(Double.parseDouble(opts.optArg));
+				} catch (Exception e) {
+					System.err.println("Contact radius argument must be a number");
+					System.exit(1);
+				}
+				break;
+
+			case 'A':
+				if (opts.optArg.equalsIgnoreCase("clustal")) {
+					alignMethod = new ClustalAlign();
+				} else if (opts.optArg.equalsIgnoreCase("progressive")) {
+					alignMethod = new ProgressiveAlign();
+				} else {
+					System.err.println("Aligner must be one of clustal or progressive");
+					System.exit(1);
+				}
+				break;
+
+			case 'w':
+				ClustalAlign.setBinary(opts.optArg);
+				break;
+
+			case 'L':
+				alignCacheDir = new File(opts.optArg);
+				break;
+
+			case 'B':
+				try {
+					searchCandidates = Integer.parseInt(opts.optArg);
+				} catch (Exception e) {
+					System.err.println("Search candidates argument must be an integer");
+					System.exit(1);
+				}
+				break;
+
+			case 'T':
+				try {
+					searchMillis = (long)(Double.parseDouble(opts.optArg)*1000);
+				} catch (Exception e) {
+					System.err.println("Search time argument must be a number");
+					System.exit(1);
+				}
+				break;
+
+			case 'n':
+				try {
+					searchNodes = Long.parseLong(opts.optArg);
+				} catch (Exception e) {
+					System.err.println("Search nodes argument must be an integer");
+					System.exit(1);
+				}
+				break;
+
 			case 'x':
 				includeX = true;
 				break;
@@ -234,6 +380,31 @@ public class Dasp {
 			System.exit(1);
 		}
 
+		if ((addPath != null || removeIds != null || updatedProfilePath != null) && profilePath == null) {
+			System.err.println("The -a, -D, and -U options need a profile (-P)");
+			usage();
+			System.exit(1);
+		}
+
+		if (sweepRadii != null && inputFile == null) {
+			System.err.println("The -R option needs an input file");
+			usage();
+			System.exit(1);
+		}
+
+		// Don't run more copies of ClustalW than we have threads
+		ClustalAlign.setMaxProcesses(numThreads);
+
+		// Identical fragment sets are aligned once (or once ever, with -L)
+		try {
+			String settings = (alignMethod instanceof ClustalAlign) ? ClustalAlign.getBinary() : null;
+			alignCache = new CachingAlign(alignMethod, settings, 1000, alignCacheDir);
+			alignMethod = alignCache;
+		} catch (IOException e) {
+			System.err.println("Unable to use alignment cache directory '"+alignCacheDir+"': "+e.getMessage());
+			System.exit(1);
+		}
+
 		PrintStream outputStream = System.out;
 		if (outputFile != null) {
 			try {
@@ -253,84 +424,38 @@ public class Dasp {
 		if (signaturePath == null && profilePath == null) {
 			// 	1. Read our input file and create the Active Site Signatures
 			try {
-				BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-				String line = null;
-				while ((line = reader.readLine()) != null) {
-					ActiveSiteSignature sig = new ActiveSiteSignature(line, pdbPath);
-					String signature = sig.getSignature(radius);
-					asSigList.add(sig);
-					if (vFlag) {
-						System.out.println("Active Site Signature for: "+line.trim()+" is "+signature);
-					}
-				}
+				asSigList = readSignatures(inputFile, pdbPath);
 			} catch (Exception e) {
 				System.err.println("Unable to read input file "+inputFile+": "+e.getMessage());
 				e.printStackTrace();
 				System.exit(1);
 			}
 
-			// 	2. Align the Active Site Signatures to create our Active Site Profile
-			// 	This step has been updated to split the alignment into two parts.  
-			// 	Part 1: align just the fragments that contain the active site key residues
-			List<ActiveSiteProfile> profileList = new ArrayList<ActiveSiteProfile>();
-
-			// We'll use the longest signature (most # of fragments) as our template
-			ActiveSiteSignature longestSig = getLongestSig(asSigList);
-
-			// Go through each fragment and create a new profile for just the key fragments
-			for (int fragIndex = 0; fragIndex < longestSig.keyFragCount(); fragIndex++) {
-				List<ActiveSiteSignature> sigList = new ArrayList<ActiveSiteSignature>();
-				for (ActiveSiteSignature sig: asSigList) {
-					// Make sure we have the same number of key fragments
-					if (sig.keyFragCount() != longestSig.keyFragCount()) {
-						System.err.println("ActiveSiteSignature residue fragments inconsistent");
-						System.exit(2);
-					}
-					sigList.add(sig.getFragmentAsSig(fragIndex));
-				}
-
-				// The list of profiles will be concatenated later into a single profile
-				ActiveSiteProfile prof = new ActiveSiteProfile(sigList, new ClustalAlign(), radius);
-				profileList.add(prof);
-			}
-			int nextFrag = longestSig.keyFragCount();
-
-			// Part 2: Now, with the remaining fragments, we want to create the best possible
-			// alignments per fragment.  Again, we'll use our template signature to drive this
-			// XXX Change to align remaining fragments in order XXX
-			/* AllByAllAlignment aligner = new AllByAllAlignment(longestSig.getFragments().size(), radius, asSigList);
-			for (int keyIndex = 0; keyIndex < longestSig.getKeyResidues().size(); keyIndex++) { 
-				List<ActiveSiteSignature> sigList = new ArrayList<ActiveSiteSignature>();
-				for (ActiveSiteSignature sig: asSigList) {
-					sigList.add(sig.getClosestFragmentAsSig(keyIndex));
-				}
-				ActiveSiteProfile prof = new ActiveSiteProfile(sigList, new ClustalAlign(), radius);
-				profileList.add(prof);
-			}
-			*/
-
-			// Part 3: Now align all the remaining fragments in N-C order.
-			for (int fragIndex = nextFrag; fragIndex < longestSig.fragCount(); fragIndex++) {
-				List<ActiveSiteSignature> sigList = new ArrayList<ActiveSiteSignature>();
-				for (ActiveSiteSignature sig: asSigList) {
-					sigList.add(sig.getFragmentAsSig(fragIndex));
+			if (sweepRadii != null) {
+				try {
+					sweepRadii(asSigList, outputStream);
+				} catch (Exception e) {
+					System.err.println("Unable to sweep radii: "+e.getMessage());
+					e.printStackTrace();
+					System.exit(1);
 				}
-				ActiveSiteProfile prof = new ActiveSiteProfile(sigList, new ClustalAlign(), radius);
-				profileList.add(prof);
+				if (vFlag)
+					System.out.println(alignCache.getStatistics());
+				outputStream.flush();
+				return;
 			}
 
-			if (vFlag) {
-				for (ActiveSiteProfile prof: profileList) {
-					prof.updateAlignmentScore();
-					System.out.println("\nProfile fragment: ");
-					System.out.println(prof.getAlignmentAsString());
-					System.out.println("  Score: "+prof.getScore());
-				}
+			// 	2. Align the Active Site Signatures to create our Active Site Profile
+			try {
+				profile = buildProfile(asSigList, radius, vFlag);
+			} catch (IllegalStateException e) {
+				System.err.println(e.getMessage());
+				System.exit(2);
+			} catch (RuntimeException e) {
+				System.err.println("Unable to build profile: "+e.getMessage());
+				e.printStackTrace();
+				System.exit(1);
 			}
-
-			// Concatenate the profiles together
-			profile = ActiveSiteProfile.concatenate(profileList);
-			profile.updateAlignmentScore();
 			if (vFlag) {
 				System.out.println("\nActiveSiteProfile: \n"+profile.getAlignmentAsString());
 				System.out.println("  Score: "+profile.getScore()+"\n");
@@ -338,8 +463,14 @@ public class Dasp {
 			// 	3. Split the Active Site Profile into the individual fragments
 			fragmentList = profile.findProfileFragments(true);
 		} else if (signaturePath != null) {
-			profile = new ActiveSiteProfile(signaturePath, new ClustalAlign());
-			profile.doAlign();
+			profile = new ActiveSiteProfile(signaturePath, alignMethod.NewAlignFactory());
+			try {
+				profile.doAlign();
+			} catch (RuntimeException e) {
+				System.err.println("Unable to align signatures: "+e.getMessage());
+				e.printStackTrace();
+				System.exit(1);
+			}
 			if (vFlag) {
 				System.out.println("\nActiveSiteProfile: \n"+profile.getAlignmentAsString());
 			}
@@ -352,6 +483,26 @@ public class Dasp {
 				System.out.println("\nActiveSiteProfile: \n"+profile.getAlignmentAsString());
 				System.out.println("  Score: "+profile.getScore()+"\n");
 			}
+			if (addPath != null || removeIds != null) {
+				try {
+					updateProfile(profile, pdbPath);
+				} catch (Exception e) {
+					System.err.println("Unable to update profile: "+e.getMessage());
+					e.printStackTrace();
+					System.exit(1);
+				}
+				if (vFlag) {
+					System.out.println("\nUpdated ActiveSiteProfile: \n"+profile.getAlignmentAsString()+"\n");
+				}
+			}
+			if (updatedProfilePath != null) {
+				try {
+					writeProfile(profile, updatedProfilePath);
+				} catch (IOException e) {
+					System.err.println("Unable to write profile "+updatedProfilePath+": "+e.getMessage());
+					System.exit(1);
+				}
+			}
 			// 	3. Split the Active Site Profile into the individual fragments
 			fragmentList = profile.findProfileFragments(false);
 		}
@@ -359,25 +510,35 @@ public class Dasp {
 
 		// 	4. Realign the fragments --if all of the structures from step 3 are set 
 		// 	up correctly then this should work just fine.
-		for (Alignment a: fragmentList) { 
-			a.doAlign(); 
-			if (vFlag) {
-				//System.out.println("Fragment alignment: \n"+a.getAlignmentAsString());
-			}
+		List<Callable<Alignment>> realignments = new ArrayList<Callable<Alignment>>();
+		for (int i = 0; i < fragmentList.size(); i++) {
+			final Alignment a = fragmentList.get(i);
+			realignments.add(new Callable<Alignment>() {
+				public Alignment call() {
+					a.doAlign(); 
+					return a;
+				}
+			});
+		}
+		try {
+			runInOrder(realignments);
+		} catch (RuntimeException e) {
+			System.err.println("Unable to realign profile fragments: "+e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
 		}
 
 		// 	5. Create the Position-Specific Scoring Matrices
 		List<PSSM>pssmList = new ArrayList();
-		for (Alignment a: fragmentList) { 
-			PSSM pssm = new PSSM(a, includeX);
-			pssmList.add(pssm); 
+		for (int i = 0; i < fragmentList.size(); i++) {
+			pssmList.add(new PSSM(fragmentList.get(i), includeX)); 
 		}
 
 		Collections.sort(pssmList); //sorts shortest to longest on pssm width
 		Collections.reverse(pssmList);
 
 		// 	6. Search the sequence database using the PSSMs
-		DBSearch searcher = new FastAFileSearcher();
+		DBSearch searcher = new FastAFileSearcher(searchMode);
 		try {
 			List<DBSearchResult> searchResults = searcher.search(dbFile, pssmList, 
 			                                                     new RyansPSSMSearch(includeX), cutoff, numThreads);
@@ -409,12 +570,326 @@ public class Dasp {
 			ex.printStackTrace();
 		}
 
+		if (vFlag)
+			System.out.println(alignCache.getStatistics());
+
 		// 	7. Combine the results from the searches
 		// 	TODO: search.combineResults();
 
 		// TODO: output final results
 	}
 
+	/**
+	 * Add the structures in the -a input file to a profile, and remove the ones
+	 * given with -D, without realigning the profile.  The motifs (and their PSSMs)
+	 * are then found again from the updated profile.
+	 *
+	 * @param profile the profile to update
+	 * @param pdbPath the path to the PDB database
+	 */
+	private static void updateProfile(ActiveSiteProfile profile, File pdbPath) throws Exception {
+		if (removeIds != null) {
+			for (String id: removeIds) {
+				id = id.trim();
+				if (profile.getAlignmentByName(id) == null) {
+					System.err.println("Warning: "+id+" is not in the profile");
+					continue;
+				}
+				profile.deleteSequence(id);
+			}
+		}
+
+		if (addPath != null) {
+			for (ActiveSiteSignature sig: readSignatures(addPath, pdbPath))
+				profile.addSignature(sig, radius);
+		}
+	}
+
+	/**
+	 * Write a profile out in the form -P reads it.
+	 *
+	 * @param profile the profile
+	 * @param file the file to write
+	 */
+	private static void writeProfile(ActiveSiteProfile profile, File file) throws IOException {
+		PrintStream out = new PrintStream(file);
+		try {
+			for (String seq: profile.getSequences()) {
+				String name = seq.split("\t")[0].trim();
+				out.println(name+"\t"+profile.getAlignmentByName(name));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read the input file and create the active site signatures.  Reading the PDB files
+	 * and calculating the signatures is independent for each line, so we do it in parallel
+	 * (using the same number of threads as the database search), but the signatures are
+	 * returned in input order.  If any line fails, we stop everything and throw the
+	 * first error we see.
+	 *
+	 * @param inputFile the input file
+	 * @param pdbPath the path to the PDB database
+	 * @return the list of signatures, in input order
+	 */
+	private static List<ActiveSiteSignature> readSignatures(String inputFile, final File pdbPath) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+		String line = null;
+		while ((line = reader.readLine()) != null)
+			lines.add(line);
+		reader.close();
+
+		// Start reading the structure files so the parsers don't have to wait on them
+		StructurePrefetcher prefetcher = null;
+		if (ioThreads > 0) {
+			prefetcher = new StructurePrefetcher(ioThreads, 4*ioThreads+numThreads);
+			for (String input: lines)
+				prefetcher.add(input, pdbPath);
+			DaspStructure.setPrefetcher(prefetcher);
+		}
+
+		ActiveSiteSignature[] sigs = new ActiveSiteSignature[lines.size()];
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+		try {
+			for (int lineNumber = 0; lineNumber < lines.size(); lineNumber++) {
+				final int index = lineNumber;
+				final String input = lines.get(lineNumber);
+				final ActiveSiteSignature[] results = sigs;
+				completion.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						ActiveSiteSignature sig = new ActiveSiteSignature(input, pdbPath);
+						if (sweepRadii == null)
+							sig.getSignature(radius);
+						results[index] = sig;
+						return index;
+					}
+				});
+			}
+
+			for (int done = 0; done < lines.size(); done++) {
+				try {
+					completion.take().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception)
+						throw (Exception)e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			if (prefetcher != null) {
+				DaspStructure.setPrefetcher(null);
+				prefetcher.shutdown();
+			}
+		}
+
+		List<ActiveSiteSignature> sigList = new ArrayList<ActiveSiteSignature>();
+		for (int lineNumber = 0; lineNumber < sigs.length; lineNumber++) {
+			sigList.add(sigs[lineNumber]);
+			if (vFlag && sweepRadii == null) {
+				System.out.println("Active Site Signature for: "+lines.get(lineNumber).trim()+" is "+sigs[lineNumber].getSignature(radius));
+			}
+		}
+		return sigList;
+	}
+
+	/**
+	 * Align the active site signatures to create the active site profile.  The
+	 * alignment is split into two parts: first we align just the fragments that contain
+	 * the active site key residues, and then the rest of the fragments in N-C order
+	 * (or, with -B, in the best grouping the fragment search can find).
+	 * The profiles for the fragments are then concatenated into a single profile.
+	 *
+	 * @param asSigList the signatures
+	 * @param radius the profile radius
+	 * @param verbose if true, print the profile for each fragment
+	 * @return the scored profile
+	 * @throws IllegalStateException if the signatures don't have the same number of key fragments
+	 */
+	private static ActiveSiteProfile buildProfile(List<ActiveSiteSignature> asSigList, final double radius, boolean verbose) {
+		// The fragment signatures are cached in each signature, so pull them all
+		// out before we start aligning in parallel
+		List<List<ActiveSiteSignature>> fragmentSigs = new ArrayList<List<ActiveSiteSignature>>();
+
+		// 	Part 1: align just the fragments that contain the active site key residues
+
+		// We'll use the longest signature (most # of fragments) as our template
+		ActiveSiteSignature longestSig = getLongestSig(asSigList);
+
+		// Go through each fragment and create a new profile for just the key fragments
+		for (int fragIndex = 0; fragIndex < longestSig.keyFragCount(); fragIndex++) {
+			List<ActiveSiteSignature> sigList = new ArrayList<ActiveSiteSignature>();
+			for (ActiveSiteSignature sig: asSigList) {
+				// Make sure we have the same number of key fragments
+				if (sig.keyFragCount() != longestSig.keyFragCount())
+					throw new IllegalStateException("ActiveSiteSignature residue fragments inconsistent");
+				sigList.add(sig.getFragmentAsSig(fragIndex));
+			}
+
+			// The list of profiles will be concatenated later into a single profile
+			fragmentSigs.add(sigList);
+		}
+		int nextFrag = longestSig.keyFragCount();
+
+		// Part 2: Now, with the remaining fragments, we want to create the best possible
+		// alignments per fragment.  This searches for the best way to group them, which
+		// can be slow, so it's only done if we've been asked to.
+		AllByAllAlignment aligner = null;
+		if (searchCandidates > 0 && nextFrag < longestSig.fragCount()) {
+			FragmentSimilarityMatrix matrix = new FragmentSimilarityMatrix(asSigList, radius, numThreads);
+			aligner = new AllByAllAlignment(asSigList, nextFrag, radius, alignMethod, matrix);
+			aligner.setBudget(searchNodes, searchMillis);
+			aligner.setCandidates(searchCandidates, numThreads);
+		} else {
+			// Part 3: Otherwise just align all the remaining fragments in N-C order.
+			for (int fragIndex = nextFrag; fragIndex < longestSig.fragCount(); fragIndex++) {
+				List<ActiveSiteSignature> sigList = new ArrayList<ActiveSiteSignature>();
+				for (ActiveSiteSignature sig: asSigList) {
+					sigList.add(sig.getFragmentAsSig(fragIndex));
+				}
+				fragmentSigs.add(sigList);
+			}
+		}
+
+		// The fragment alignments don't depend on each other, so do them all at once
+		List<Callable<ActiveSiteProfile>> alignments = new ArrayList<Callable<ActiveSiteProfile>>();
+		for (final List<ActiveSiteSignature> sigList: fragmentSigs) {
+			alignments.add(new Callable<ActiveSiteProfile>() {
+				public ActiveSiteProfile call() {
+					return new ActiveSiteProfile(sigList, alignMethod.NewAlignFactory(), radius);
+				}
+			});
+		}
+		List<ActiveSiteProfile> profileList = runInOrder(alignments);
+
+		if (aligner != null) {
+			profileList.addAll(aligner.getBestProfiles(profileList));
+			if (verbose) {
+				System.out.println("\nFragment grouping search looked at "+aligner.getNodeCount()+" assignments"+
+				                   (aligner.isExhausted() ? " (stopped early)" : ""));
+			}
+		}
+
+		if (verbose) {
+			for (ActiveSiteProfile prof: profileList) {
+				prof.updateAlignmentScore();
+				System.out.println("\nProfile fragment: ");
+				System.out.println(prof.getAlignmentAsString());
+				System.out.println("  Score: "+prof.getScore());
+			}
+		}
+
+		// Concatenate the profiles together
+		ActiveSiteProfile profile = ActiveSiteProfile.concatenate(profileList);
+		profile.updateAlignmentScore();
+		return profile;
+	}
+
+	/**
+	 * Run a list of tasks on a pool of threads and return the results in the
+	 * same order as the tasks.  If a task fails, its exception is passed on.
+	 *
+	 * @param tasks the tasks to run
+	 * @return the results of the tasks
+	 */
+	private static <T> List<T> runInOrder(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>();
+		if (tasks.isEmpty())
+			return results;
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, tasks.size())));
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (Callable<T> task: tasks)
+				futures.add(pool.submit(task));
+			for (Future<T> future: futures)
+				results.add(future.get());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+			// Let any tasks that are still running clean up (ClustalW leaves scratch
+			// directories behind otherwise) before we go on
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Build and score the active site profile at each of the sweep radii.  The
+	 * signatures for all of the radii come from a single pass over the distances
+	 * in each structure, and the profiles for the different radii are built in
+	 * parallel.  The profiles are reported in the order the radii were given, followed
+	 * by a summary of the scores.
+	 *
+	 * @param asSigList the signatures read from the input file
+	 * @param outputStream where to write the profiles
+	 */
+	private static void sweepRadii(List<ActiveSiteSignature> asSigList, PrintStream outputStream) throws Exception {
+		List<List<ActiveSiteSignature>> sigsByRadius = new ArrayList<List<ActiveSiteSignature>>();
+		for (int r = 0; r < sweepRadii.length; r++)
+			sigsByRadius.add(new ArrayList<ActiveSiteSignature>());
+		for (ActiveSiteSignature sig: asSigList) {
+			List<ActiveSiteSignature> swept = sig.sweep(sweepRadii);
+			for (int r = 0; r < sweepRadii.length; r++) {
+				sigsByRadius.get(r).add(swept.get(r));
+				if (vFlag) {
+					System.out.println("Active Site Signature for: "+sig.getPdbId()+" at radius "+sweepRadii[r]+
+					                   " is "+swept.get(r).getSignature(sweepRadii[r]));
+				}
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, sweepRadii.length)));
+		List<Future<ActiveSiteProfile>> profiles = new ArrayList<Future<ActiveSiteProfile>>();
+		for (int r = 0; r < sweepRadii.length; r++) {
+			final List<ActiveSiteSignature> sigList = sigsByRadius.get(r);
+			final double profileRadius = sweepRadii[r];
+			profiles.add(pool.submit(new Callable<ActiveSiteProfile>() {
+				public ActiveSiteProfile call() throws Exception {
+					return buildProfile(sigList, profileRadius, false);
+				}
+			}));
+		}
+
+		String[] scores = new String[sweepRadii.length];
+		try {
+			for (int r = 0; r < sweepRadii.length; r++) {
+				outputStream.println("\nActiveSiteProfile at radius "+sweepRadii[r]+":");
+				try {
+					ActiveSiteProfile profile = profiles.get(r).get();
+					outputStream.println(profile.getAlignmentAsString());
+					outputStream.println("  Score: "+profile.getScore());
+					scores[r] = String.valueOf(profile.getScore());
+				} catch (ExecutionException e) {
+					outputStream.println("  Unable to build profile: "+e.getCause().getMessage());
+					scores[r] = "-";
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		outputStream.println("\nRadius\tScore");
+		for (int r = 0; r < sweepRadii.length; r++)
+			outputStream.println(sweepRadii[r]+"\t"+scores[r]);
+	}
+
 	private static ActiveSiteSignature getLongestSig(List<ActiveSiteSignature> assList) {
 		int longest = -1;
 		ActiveSiteSignature longestSig = null;
@@ -429,16 +904,31 @@ public class Dasp {
 	}
 
 	private static void usage() {
-		System.out.println("Usage: dasp -i filename [-r n] [-c n.nn] [-p dir] [-o file] [-d db] [-h][-v]");
+		System.out.println("Usage: dasp -i filename [-r n] [-R n,n,...] [-c n.nn] [-p dir] [-C dir] [-F n] [-N n] [-A aligner] [-w path] [-L dir] [-B n] [-T s] [-n n] [-P file [-a file] [-D ids] [-U file]] [-o file] [-d db] [-t n] [-e mode] [-h][-v]");
 		System.out.println("arguments: ");
 	 	System.out.println("    -i filename	The name of the input file");
 	 	System.out.println("    -r radius	The radius for inclusion into the active site signature");
+	 	System.out.println("    -R radii	Build and score the profiles for a comma-separated list of radii (no database search)");
 	 	System.out.println("    -c cutoff	The cutoff value for searching the sequence database");
 	 	System.out.println("    -p pdbDatabase	The path to the pdb database");
+	 	System.out.println("    -C directory	Cache the residue data read from the pdb database in this directory");
+	 	System.out.println("    -F threads	The number of threads to read pdb files ahead with (default: 4, 0 to turn off)");
+	 	System.out.println("    -N radius	Build contact maps out to this radius (cached with -C) and use them for any smaller radius");
+	 	System.out.println("    -A aligner	How to align the signatures: clustal (default, runs clustalw2) or progressive (built in)");
+	 	System.out.println("    -w path	The clustalw2 program to run (default: /usr/local/bin/clustalw2)");
+	 	System.out.println("    -L directory	Keep the fragment alignments in this directory and reuse them in later runs");
+	 	System.out.println("    -B candidates	Search for the best grouping of the non-key fragments and score this many of the best (default: 0, align them in N-C order)");
+	 	System.out.println("    -T seconds	The most time to spend on the fragment grouping search (default: 10)");
+	 	System.out.println("    -n nodes	The most partial groupings the fragment grouping search looks at (default: 10000000)");
     System.out.println("    -P profile  The path to the active site profile");
     System.out.println("    -S signature  The path to the active site signature");
+	 	System.out.println("    -a filename	Add the structures in this input file to the profile (-P) without realigning it");
+	 	System.out.println("    -D ids	Remove these comma-separated structures from the profile (-P)");
+	 	System.out.println("    -U filename	Write the updated profile to this file");
 	 	System.out.println("    -o filename	The file to wite the active stie profile into");
 	 	System.out.println("    -d database	The database to use for the sequence search");
+	 	System.out.println("    -t threads	The number of threads to use for the database search (default: # of processors)");
+	 	System.out.println("    -e mode	How to run the search threads: pool, forkjoin (work stealing), or virtual (forkjoin, reading on a virtual thread)");
 	 	System.out.println("    -h the help text");
 	 	System.out.println("    -v print verbose output");
     System.out.println("    -x include X in the PSSMs");
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 
 import dasp.model.Alignment;
+import dasp.model.AlignmentRows;
 
 public interface Align {
 	public static final String CONSERVATION = "Conservation";
@@ -46,6 +47,14 @@ public interface Align {
  	 */
 	public Map<String, String> getAlignment();
 
+	/**
+	 * Return the alignment as rows in the same order as the sequences that were
+	 * aligned, with the conservation line (if any) kept apart from them.
+	 *
+	 * @return the aligned rows
+	 */
+	public AlignmentRows getAlignmentRows();
+
 	/**
  	 * Return the alignment itself as an HTML-formatted string
  	 * to account for insertions.
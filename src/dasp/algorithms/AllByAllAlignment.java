@@ -0,0 +1,399 @@
+/**
+ * AllByAllAlignment decides which of the fragments that don't contain a key
+ * residue go together in the active site profile.  Each signature's fragments
+ * are placed, in N-C order, into the columns of the profile (there are as many
+ * columns as the signature with the most fragments has), and an assignment is
+ * scored by adding up the similarity of every pair of fragments that end up in
+ * the same column (looked up in a {@link FragmentSimilarityMatrix}, so nothing
+ * is aligned while we search).  The assignments are searched by branch and
+ * bound, one signature at a time.  The bound is the best each signature still to
+ * be placed could add against the ones that have been (worked out exactly, column
+ * by column), plus the best each pair of signatures still to be placed could add.
+ * The search stops when it runs out of its node or time budget (see setBudget),
+ * so for large clusters it gives the best assignments it has found so far.
+ *
+ * The best few assignments (and always the plain N-C assignment) are then
+ * aligned for real and scored by their ASP score in parallel, and the best
+ * one wins.  The N-C assignment wins any ties, so the profile is never worse
+ * than aligning the fragments in order.
+ */
+
+package dasp.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dasp.model.ActiveSiteProfile;
+import dasp.model.ActiveSiteSignature;
+
+public class AllByAllAlignment {
+	private static final int MAX_PLACEMENTS = 100000;
+
+	private double radius;
+	private Align method = null;
+	private int columns;                      // columns in the (non-key) profile
+	private int[] fragCount;                  // non-key fragments in each signature
+	private ActiveSiteSignature[][] fragSigs; // each signature's fragments, then its empty fragments
+	private double[][][] similarity;          // [s][t][i*fragCount[t]+j], for s < t
+	private double[][] pairBound;             // the most each pair of signatures can add
+	private double[] remainingBound;          // the most pairs of signatures k.. can add
+	private int[][][] placements;             // [s][p][i]: the column fragment i of s goes in
+
+	private long maxNodes = 10000000;
+	private long maxMillis = 10000;
+	private int maxCandidates = 8;
+	private int threads = 1;
+
+	// Search state
+	private double[][][] columnGain;          // [t][column][i]: what fragment i of t would add there
+	private int[] choice;
+	private long nodes = 0;
+	private long deadline = 0;
+	private boolean stopped = false;
+	private List<Candidate> candidates = null;
+
+	private static class Candidate {
+		int[] choice;
+		double score;
+		Candidate(int[] choice, double score) {
+			this.choice = choice;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * Set up the search.  The fragments are pulled out of the signatures here,
+	 * so this should be called before anything else is using them.
+	 *
+	 * @param signatures the active site signatures
+	 * @param keyFragCount the number of key fragments (the same for every signature)
+	 * @param radius the profile radius
+	 * @param method the alignment method to use for the candidate profiles
+	 * @param matrix the similarity of the signatures' fragments
+	 */
+	public AllByAllAlignment(List<ActiveSiteSignature> signatures, int keyFragCount,
+	                         double radius, Align method, FragmentSimilarityMatrix matrix) {
+		this.radius = radius;
+		this.method = method;
+		int count = signatures.size();
+
+		fragCount = new int[count];
+		columns = 0;
+		for (int s = 0; s < count; s++) {
+			fragCount[s] = matrix.getFragmentCount(s)-keyFragCount;
+			columns = Math.max(columns, fragCount[s]);
+		}
+
+		// Getting a fragment past the end adds an empty one, just as the N-C alignment does
+		fragSigs = new ActiveSiteSignature[count][columns];
+		for (int s = 0; s < count; s++) {
+			for (int i = 0; i < columns; i++)
+				fragSigs[s][i] = signatures.get(s).getFragmentAsSig(keyFragCount+i);
+		}
+
+		similarity = new double[count][count][];
+		pairBound = new double[count][count];
+		for (int s = 0; s < count; s++) {
+			for (int t = s+1; t < count; t++) {
+				similarity[s][t] = new double[fragCount[s]*fragCount[t]];
+				for (int i = 0; i < fragCount[s]; i++) {
+					for (int j = 0; j < fragCount[t]; j++)
+						similarity[s][t][i*fragCount[t]+j] = matrix.getScore(s, keyFragCount+i, t, keyFragCount+j);
+				}
+				pairBound[s][t] = bestMatching(s, t);
+			}
+		}
+
+		remainingBound = new double[count+1];
+		for (int k = count-1; k >= 0; k--) {
+			remainingBound[k] = remainingBound[k+1];
+			for (int t = k+1; t < count; t++)
+				remainingBound[k] += pairBound[k][t];
+		}
+
+		placements = new int[count][][];
+		for (int s = 0; s < count; s++)
+			placements[s] = combinations(columns, fragCount[s]);
+	}
+
+	/**
+	 * Limit the search (by default to 10000000 partial assignments and 10 seconds).
+	 *
+	 * @param maxNodes the most partial assignments to look at
+	 * @param maxMillis the most time to spend searching, in milliseconds
+	 */
+	public void setBudget(long maxNodes, long maxMillis) {
+		this.maxNodes = maxNodes;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * Set how many of the best assignments to align and score, and how many
+	 * threads to do that with.
+	 */
+	public void setCandidates(int maxCandidates, int threads) {
+		this.maxCandidates = Math.max(maxCandidates, 1);
+		this.threads = Math.max(threads, 1);
+	}
+
+	public int getColumnCount() { return columns; }
+
+	public long getNodeCount() { return nodes; }
+
+	/**
+	 * Did the search stop because it ran out of budget?
+	 */
+	public boolean isExhausted() { return stopped; }
+
+	/**
+	 * Find the best assignment and return its profile fragments.
+	 *
+	 * @param keyProfiles the profiles for the key fragments, which go in front
+	 * of ours when we score the candidates
+	 * @return the profiles for the non-key columns, in column order
+	 */
+	public List<ActiveSiteProfile> getBestProfiles(final List<ActiveSiteProfile> keyProfiles) {
+		if (columns == 0)
+			return new ArrayList<ActiveSiteProfile>();
+
+		List<int[]> tryList = new ArrayList<int[]>();
+		int[] inOrder = new int[fragCount.length]; // the first placement is always N-C order
+		tryList.add(inOrder);
+		for (Candidate c: search()) {
+			if (!Arrays.equals(c.choice, inOrder))
+				tryList.add(c.choice);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tryList.size()));
+		try {
+			List<Future<List<ActiveSiteProfile>>> results = new ArrayList<Future<List<ActiveSiteProfile>>>();
+			for (final int[] c: tryList) {
+				results.add(pool.submit(new Callable<List<ActiveSiteProfile>>() {
+					public List<ActiveSiteProfile> call() {
+						return buildProfiles(c);
+					}
+				}));
+			}
+
+			List<ActiveSiteProfile> best = null;
+			double bestScore = 0.0;
+			for (Future<List<ActiveSiteProfile>> result: results) {
+				List<ActiveSiteProfile> profiles = result.get();
+				List<ActiveSiteProfile> all = new ArrayList<ActiveSiteProfile>(keyProfiles);
+				all.addAll(profiles);
+				double score = ActiveSiteProfile.concatenate(all).updateAlignmentScore();
+				if (best == null || score > bestScore) {
+					best = profiles;
+					bestScore = score;
+				}
+			}
+			return best;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run the branch and bound search.
+	 *
+	 * @return the best assignments found, best first
+	 */
+	private List<Candidate> search() {
+		int count = fragCount.length;
+		columnGain = new double[count][columns][];
+		for (int t = 0; t < count; t++) {
+			for (int column = 0; column < columns; column++)
+				columnGain[t][column] = new double[fragCount[t]];
+		}
+		choice = new int[count];
+		candidates = new ArrayList<Candidate>();
+		nodes = 0;
+		stopped = false;
+		deadline = System.currentTimeMillis()+maxMillis;
+
+		// Start with the N-C order, so we always have something to beat
+		double inOrder = 0.0;
+		for (int k = 0; k < count; k++) {
+			inOrder += gain(k, placements[k][0]);
+			place(k, placements[k][0], true);
+		}
+		offer(new int[count], inOrder);
+		for (int k = 0; k < count; k++)
+			place(k, placements[k][0], false);
+
+		search(0, 0.0);
+		return candidates;
+	}
+
+	private void search(int k, double score) {
+		if (stopped || ++nodes > maxNodes || ((nodes & 1023) == 0 && System.currentTimeMillis() > deadline)) {
+			stopped = true;
+			return;
+		}
+		if (k == fragCount.length) {
+			offer(choice.clone(), score);
+			return;
+		}
+
+		// The best the signatures after this one could do against the ones we've placed
+		double later = remainingBound[k];
+		for (int t = k+1; t < fragCount.length; t++)
+			later += bestGain(t);
+		if (score+bestGain(k)+later <= threshold())
+			return;
+
+		// Try the placements that add the most first
+		int[][] places = placements[k];
+		final double[] gains = new double[places.length];
+		Integer[] order = new Integer[places.length];
+		for (int p = 0; p < places.length; p++) {
+			gains[p] = gain(k, places[p]);
+			order[p] = p;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(gains[b], gains[a]);
+			}
+		});
+
+		for (Integer p: order) {
+			double next = score+gains[p];
+			if (next+later <= threshold())
+				break;
+			choice[k] = p;
+			place(k, places[p], true);
+			search(k+1, next);
+			place(k, places[p], false);
+			if (stopped)
+				return;
+		}
+	}
+
+	// What placing signature k adds to the score of the signatures before it
+	private double gain(int k, int[] placement) {
+		double gain = 0.0;
+		for (int i = 0; i < placement.length; i++)
+			gain += columnGain[k][placement[i]][i];
+		return gain;
+	}
+
+	// The most placing signature t could add to the signatures placed so far
+	private double bestGain(int t) {
+		int n = fragCount[t];
+		double[][] gains = columnGain[t];
+		// best[i]: the most the first i fragments can add in the columns so far
+		double[] best = new double[n+1];
+		Arrays.fill(best, 1, n+1, Double.NEGATIVE_INFINITY);
+		for (int column = 0; column < columns; column++) {
+			for (int i = Math.min(n, column+1); i > 0; i--)
+				best[i] = Math.max(best[i], best[i-1]+gains[column][i-1]);
+		}
+		return best[n];
+	}
+
+	private void place(int k, int[] placement, boolean add) {
+		for (int i = 0; i < placement.length; i++) {
+			int column = placement[i];
+			for (int t = k+1; t < fragCount.length; t++) {
+				double[] sim = similarity[k][t];
+				double[] gains = columnGain[t][column];
+				for (int j = 0; j < gains.length; j++)
+					gains[j] += add ? sim[i*fragCount[t]+j] : -sim[i*fragCount[t]+j];
+			}
+		}
+	}
+
+	// The score a new assignment has to beat to be worth keeping
+	private double threshold() {
+		if (candidates.size() < maxCandidates)
+			return Double.NEGATIVE_INFINITY;
+		return candidates.get(candidates.size()-1).score;
+	}
+
+	private void offer(int[] c, double score) {
+		for (Candidate old: candidates) {
+			if (Arrays.equals(old.choice, c))
+				return;
+		}
+		int index = 0;
+		while (index < candidates.size() && candidates.get(index).score >= score)
+			index++;
+		if (index >= maxCandidates)
+			return;
+		candidates.add(index, new Candidate(c, score));
+		if (candidates.size() > maxCandidates)
+			candidates.remove(candidates.size()-1);
+	}
+
+	// Align each column of an assignment
+	private List<ActiveSiteProfile> buildProfiles(int[] c) {
+		int count = fragCount.length;
+		ActiveSiteSignature[][] byColumn = new ActiveSiteSignature[columns][count];
+		for (int s = 0; s < count; s++) {
+			int[] placement = placements[s][c[s]];
+			boolean[] used = new boolean[columns];
+			for (int i = 0; i < placement.length; i++) {
+				byColumn[placement[i]][s] = fragSigs[s][i];
+				used[placement[i]] = true;
+			}
+			// The empty fragments fill in the rest, in order
+			int empty = fragCount[s];
+			for (int column = 0; column < columns; column++) {
+				if (!used[column])
+					byColumn[column][s] = fragSigs[s][empty++];
+			}
+		}
+
+		List<ActiveSiteProfile> profiles = new ArrayList<ActiveSiteProfile>();
+		for (int column = 0; column < columns; column++)
+			profiles.add(new ActiveSiteProfile(Arrays.asList(byColumn[column]), method.NewAlignFactory(), radius));
+		return profiles;
+	}
+
+	// The best order-preserving matching of the fragments of two signatures
+	private double bestMatching(int s, int t) {
+		int n = fragCount[s], m = fragCount[t];
+		double[][] best = new double[n+1][m+1];
+		for (int i = 1; i <= n; i++) {
+			for (int j = 1; j <= m; j++) {
+				double match = best[i-1][j-1]+similarity[s][t][(i-1)*m+(j-1)];
+				best[i][j] = Math.max(match, Math.max(best[i-1][j], best[i][j-1]));
+			}
+		}
+		return best[n][m];
+	}
+
+	// All of the ways to choose k of n columns, in order, starting with 0..k-1
+	private static int[][] combinations(int n, int k) {
+		List<int[]> result = new ArrayList<int[]>();
+		int[] c = new int[k];
+		for (int i = 0; i < k; i++)
+			c[i] = i;
+		while (result.size() < MAX_PLACEMENTS) {
+			result.add(c.clone());
+			int i = k-1;
+			while (i >= 0 && c[i] == n-k+i)
+				i--;
+			if (i < 0)
+				break;
+			c[i]++;
+			for (int j = i+1; j < k; j++)
+				c[j] = c[j-1]+1;
+		}
+		return result.toArray(new int[result.size()][]);
+	}
+}
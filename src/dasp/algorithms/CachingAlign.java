@@ -0,0 +1,265 @@
+/**
+ * CachingAlign wraps another alignment method and remembers what it returns.
+ * The same sets of fragments get aligned over and over (re-runs with different
+ * cutoffs, radius sweeps that leave some fragments alone, signature files), so
+ * each alignment is keyed by a SHA-256 hash of the aligner settings and the
+ * ordered list of (name, sequence) pairs.  Recent alignments are kept in memory,
+ * and if we're given a directory, every alignment is also kept on disk so that
+ * later runs can use it.  A cached alignment is returned without running the
+ * aligner at all.
+ */
+
+package dasp.algorithms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dasp.model.AlignmentRows;
+
+public class CachingAlign implements Align {
+	private static final int MAGIC = 0x4441414c; // "DAAL"
+	private static final int VERSION = 2;
+
+	private Align aligner = null;
+	private String settings = null;
+	private Store store = null;
+	private AlignmentRows rows = new AlignmentRows();
+	private double score = 0.0;
+	private double identity = 0.0;
+
+	// The cache itself, which is shared by all of the aligners we make
+	private static class Store {
+		File directory = null;
+		Map<String, Entry> memory = null;
+		int memoryHits = 0;
+		int diskHits = 0;
+		int misses = 0;
+	}
+
+	private static class Entry {
+		double score = 0.0;
+		double identity = 0.0;
+		AlignmentRows rows = null;
+	}
+
+	/**
+	 * Create a caching aligner.
+	 *
+	 * @param aligner the alignment method to cache
+	 * @param settings anything about the aligner (other than its class) that changes
+	 * the alignments it makes
+	 * @param memorySize the number of alignments to keep in memory
+	 * @param directory the directory to keep alignments in, or null to only keep
+	 * them in memory
+	 */
+	public CachingAlign(Align aligner, String settings, final int memorySize, File directory) throws IOException {
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create alignment cache directory "+directory);
+		this.aligner = aligner;
+		this.settings = aligner.getClass().getName()+(settings == null ? "" : " "+settings);
+		store = new Store();
+		store.directory = directory;
+		store.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > memorySize;
+			}
+		};
+	}
+
+	private CachingAlign(Align aligner, String settings, Store store) {
+		this.aligner = aligner;
+		this.settings = settings;
+		this.store = store;
+	}
+
+	/**
+	 * Align the sequences, or look up the alignment if we've done it before.
+	 *
+	 * @param sequences list of sequences ("name\tsequence")
+	 * @return the alignment score
+	 */
+	public double align(List<String> sequences) {
+		String key = getKey(sequences);
+		Entry entry = null;
+		synchronized (store) {
+			entry = store.memory.get(key);
+			if (entry != null)
+				store.memoryHits++;
+		}
+
+		if (entry == null && store.directory != null) {
+			entry = load(key);
+			synchronized (store) {
+				if (entry != null) {
+					store.diskHits++;
+					store.memory.put(key, entry);
+				}
+			}
+		}
+
+		if (entry == null) {
+			entry = new Entry();
+			entry.score = aligner.align(sequences);
+			entry.identity = aligner.getIdentity();
+			entry.rows = aligner.getAlignmentRows();
+			synchronized (store) {
+				store.misses++;
+				store.memory.put(key, entry);
+			}
+			if (store.directory != null) {
+				try {
+					save(key, entry);
+				} catch (IOException e) {
+					System.err.println("Unable to cache alignment: "+e.getMessage());
+				}
+			}
+		}
+
+		// The rows never change, so everyone can share them
+		rows = entry.rows;
+		score = entry.score;
+		identity = entry.identity;
+		return score;
+	}
+
+	public double getASPscore(File alnFile, int numSequences) { return score; }
+
+	public double getIdentity() { return identity; }
+
+	public Map<String, String> getAlignment() { return rows.toMap(); }
+
+	public AlignmentRows getAlignmentRows() { return rows; }
+
+	public String getHTMLAlignment(Map<String, String> alignment) {
+		return aligner.getHTMLAlignment(alignment);
+	}
+
+	public Align NewAlignFactory() {
+		return new CachingAlign(aligner.NewAlignFactory(), settings, store);
+	}
+
+	/**
+	 * Return a one line summary of how well the cache has done.
+	 *
+	 * @return the hit rates
+	 */
+	public String getStatistics() {
+		synchronized (store) {
+			int total = store.memoryHits+store.diskHits+store.misses;
+			return "Alignment cache: "+total+" alignments, "+
+			       store.memoryHits+" memory hits ("+percent(store.memoryHits, total)+"), "+
+			       store.diskHits+" disk hits ("+percent(store.diskHits, total)+"), "+
+			       store.misses+" misses";
+		}
+	}
+
+	private String getKey(List<String> sequences) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(settings.getBytes("UTF-8"));
+			for (String seq: sequences) {
+				String sp[] = seq.split("\t");
+				digest.update((byte)0);
+				digest.update(sp[0].getBytes("UTF-8"));
+				digest.update((byte)'\t');
+				digest.update(sp[1].getBytes("UTF-8"));
+			}
+			StringBuilder name = new StringBuilder();
+			for (byte b: digest.digest())
+				name.append(String.format("%02x", b & 0xff));
+			return name.toString();
+		} catch (Exception e) {
+			// SHA-256 and UTF-8 are always there
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Entry load(String key) {
+		File cacheFile = new File(store.directory, key+".dal");
+		if (!cacheFile.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(settings))
+				return null;
+			Entry entry = new Entry();
+			entry.score = in.readDouble();
+			entry.identity = in.readDouble();
+			int count = in.readInt();
+			String[] names = new String[count];
+			byte[][] rows = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				names[i] = in.readUTF();
+				rows[i] = new byte[in.readInt()];
+				in.readFully(rows[i]);
+			}
+			String conservation = in.readBoolean() ? in.readUTF() : null;
+			entry.rows = new AlignmentRows(names, rows, conservation);
+			return entry;
+		} catch (IOException e) {
+			// Treat a damaged cache file as a miss
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	private void save(String key, Entry entry) throws IOException {
+		File cacheFile = new File(store.directory, key+".dal");
+		File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", store.directory);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(settings);
+			out.writeDouble(entry.score);
+			out.writeDouble(entry.identity);
+			out.writeInt(entry.rows.size());
+			for (int i = 0; i < entry.rows.size(); i++) {
+				out.writeUTF(entry.rows.getName(i));
+				out.writeInt(entry.rows.getRow(i).length);
+				out.write(entry.rows.getRow(i));
+			}
+			out.writeBoolean(entry.rows.getConservation() != null);
+			if (entry.rows.getConservation() != null)
+				out.writeUTF(entry.rows.getConservation());
+			out.close();
+			out = null;
+			if (!tmpFile.renameTo(cacheFile)) {
+				cacheFile.delete();
+				if (!tmpFile.renameTo(cacheFile))
+					throw new IOException("Can't rename "+tmpFile+" to "+cacheFile);
+			}
+		} finally {
+			close(out);
+			tmpFile.delete();
+		}
+	}
+
+	private static String percent(int count, int total) {
+		if (total == 0) return "0%";
+		return String.format("%.1f%%", 100.0*count/total);
+	}
+
+	private void close(Closeable stream) {
+		if (stream == null) return;
+		try {
+			stream.close();
+		} catch (IOException e) {}
+	}
+}
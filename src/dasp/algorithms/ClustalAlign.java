@@ -5,12 +5,14 @@
 package dasp.algorithms;
 
 import dasp.model.Alignment;
+import dasp.model.AlignmentRows;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.PrintStream;
@@ -19,13 +21,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 public class ClustalAlign implements Align {
 	private double alignmentScore = 0.0;
 	private Alignment alignment = null;
 	private double percentID = 0.0;
 	private Map<String, String> alignMap;
+	private AlignmentRows rows = new AlignmentRows();
 	private int match=0,strong=0,weak=0,totalGaps=0,alnLength=0;
+	private String screenOutput = null;
+
+	private static String binary = "/usr/local/bin/clustalw2";
+	private static Semaphore processLimit = new Semaphore(Runtime.getRuntime().availableProcessors());
 
 	/**
 	 * Will need to store the alignment or files the alignemnt is saved to?
@@ -59,108 +67,158 @@ public class ClustalAlign implements Align {
 		if (nSequences == 1) {
 			// Special case.  We only have one sequence, so we just construct an alignment
 			int length = singleSeq.length();
+			List<String> names = new ArrayList<String>();
 			for (String s: sequences) {
 				String sp[] = s.split("\t");
 				if (sp[1].equals("-"))
 					sp[1] = pad("-", length);
 				alignMap.put(sp[0],sp[1]);
+				names.add(sp[0]);
 			}
+			rows = new AlignmentRows(names, alignMap);
 			return 0.0;
 		}
 
 		/**
-		 * First need to save all seqs to a FASTA file for use with Clustal.
+		 * ClustalW wants its input in a file, so we write the sequences into a
+		 * scratch directory of our own (in memory, if we can), and throw the
+		 * whole directory away when we're done.
 		 */
-		//Need to find a way to get the original file name for use with this, so that each Clustal run can have a unique name.
-		File tmpFastaFile = null;
-		File alignmentFile = null;
+		File scratchDir = null;
 		try {
-			tmpFastaFile = File.createTempFile("tmpFastaFile",".fasta");
-			alignmentFile = File.createTempFile("tmpFastaFile",".aln");
-		} catch (IOException e) {
-				System.err.println("Error creating temp files.");
-				e.printStackTrace();
-				System.exit(-1);
-		}
+			scratchDir = createScratchDirectory();
+			File tmpFastaFile = new File(scratchDir, "input.fasta");
+			File alignmentFile = new File(scratchDir, "input.aln");
 
-		try{
-			FileOutputStream FOS = new FileOutputStream(tmpFastaFile);
-			PrintStream PS = new PrintStream(FOS);
-	
+			PrintStream PS = new PrintStream(new FileOutputStream(tmpFastaFile));
 			for (String seq: sequences){
 				String sp[] = seq.split("\t");
 				PS.println(">" + sp[0]);
 				PS.println(sp[1]);
 			}
-			FOS.close();
+			PS.close();
+			if (PS.checkError())
+				throw new IOException("Error writing fasta signatures to "+tmpFastaFile);
+
+			runClustal(tmpFastaFile, alignmentFile);
+
+			parseAlnFile(alignmentFile, sequences);
 		} catch(IOException e) {
-				System.err.println("Error writing fasta signatures to file.");
-				e.printStackTrace();
-				System.exit(-1);
+			// We're probably on a worker thread, so leave it to the caller to stop
+			throw new RuntimeException("Unable to run "+binary+": "+e.getMessage(), e);
+		} finally {
+			deleteDirectory(scratchDir);
 		}
-        
- 		try {
-             
-			String s = null;
-			//Need to make sure the file exists first!
-			// XXX The location of the clustalw binary should be a property
-			String cmd[] = {"/usr/local/bin/clustalw2", "-INFILE="+tmpFastaFile.getPath(), "-OUTFILE="+alignmentFile.getPath()};
-			Process p = Runtime.getRuntime().exec(cmd);
-
-			BufferedReader stdInput = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-			FileOutputStream FOS = new FileOutputStream("ClustalScreenOutput.cw");
-			PrintStream PS = new PrintStream(FOS);
-
-			//prints Clustal screen output to a file
-			while((s = stdInput.readLine()) != null){
-				//System.out.println(s);
-				PS.println(s);
-			}
-			//prints clustal error messages to a file AND to the screen
-			while((s = stdError.readLine()) != null){
-				System.err.println(s);
-				PS.println(s);
-			}
-			//Need to close process streams
-			p.getErrorStream().close();
-			p.getInputStream().close();
+
+		formatAlignment(sequences);
+
+		return getASPscore(null, sequences.size());
+	}
+
+	/**
+	 * Set the ClustalW program to run.
+	 *
+	 * @param path the path to the clustalw2 binary
+	 */
+	public static void setBinary(String path) { binary = path; }
+
+	public static String getBinary() { return binary; }
+
+	/**
+	 * Set the most ClustalW processes to run at once (across all of the
+	 * ClustalAlign objects).
+	 *
+	 * @param processes the number of processes
+	 */
+	public static void setMaxProcesses(int processes) {
+		processLimit = new Semaphore(Math.max(processes, 1));
+	}
+
+	/**
+	 * Return what ClustalW printed while it was running.
+	 *
+	 * @return the screen output, or null if ClustalW hasn't been run
+	 */
+	public String getScreenOutput() {
+		return screenOutput;
+	}
+
+	/**
+	 * Run ClustalW.  The standard error is read on its own thread while we read
+	 * the standard output, so ClustalW can't block on either pipe.
+	 */
+	private void runClustal(File fastaFile, File alignmentFile) throws IOException {
+		String cmd[] = {binary, "-INFILE="+fastaFile.getPath(), "-OUTFILE="+alignmentFile.getPath()};
+		Semaphore limit = processLimit;
+		limit.acquireUninterruptibly();
+		try {
+			Process p = Runtime.getRuntime().exec(cmd, null, fastaFile.getParentFile());
 			p.getOutputStream().close();
 
-		} catch(IOException e){
-			System.err.println("Exception happened running CLUSTALW: ");
-			e.printStackTrace();
-			System.exit(-1);
+			final StringBuilder screen = new StringBuilder();
+			final StringBuilder errors = new StringBuilder();
+			final InputStream stdError = p.getErrorStream();
+			Thread errorReader = new Thread("clustal-stderr") {
+				public void run() {
+					try {
+						readLines(stdError, errors);
+					} catch (IOException e) {}
+				}
+			};
+			errorReader.setDaemon(true);
+			errorReader.start();
+			readLines(p.getInputStream(), screen);
+
+			int status = 0;
+			try {
+				errorReader.join();
+				status = p.waitFor();
+			} catch (InterruptedException e) {
+				p.destroy();
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for "+binary);
+			}
+
+			//prints clustal error messages to the screen
+			if (errors.length() > 0)
+				System.err.print(errors);
+			screenOutput = screen.append(errors).toString();
+			if (status != 0)
+				throw new IOException(binary+" exited with status "+status);
+		} finally {
+			limit.release();
 		}
-         
-		/**
-		 * At this point we should have the following files saved in the outDir:
-		 * tmpFastaFile.aln
-		 * tmpFastaFile.dnd
-		 * tmpFastaFile.cw
-		 *
-		 * The next step DASP takes is to calculate the ASP score for the alignment
-		 * and appends information to the .aln file.
-		 * I think if this appended file is to be the important one, we should
-		 * have it named something unique so it doesn't get overridden.  Not sure
-		 * how to do that at the moment.
-		 *
-		 * I think the ASP score is calculated from the .aln file.  Should we calculate
-		 * that here or in the ActiveSiteProfile class?  I think it would make sense to calculate it here
-		 * but I'm not sure all alignemnt methods will give output compatable with the algorithm.
-		 * I will put in the method here, then we can change it later if we need to.
-		 * I guess the score this method returns should be related to the specific alignment algorithm
-		 * However, clustal's score is always just the percent ID I think.
-		 * Have to think about this more, but either way I need a method to claculate the ASP score.
-		 * Maybe that should be part of the Align interface.
-		 *
-		 */
+	}
 
-		parseAlnFile(alignmentFile, sequences);
+	private static void readLines(InputStream stream, StringBuilder output) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+		try {
+			String s = null;
+			while((s = reader.readLine()) != null)
+				output.append(s).append('\n');
+		} finally {
+			reader.close();
+		}
+	}
 
-		formatAlignment(sequences);
+	private static File createScratchDirectory() throws IOException {
+		File base = new File("/dev/shm");
+		if (!base.isDirectory() || !base.canWrite())
+			base = new File(System.getProperty("java.io.tmpdir"));
+		File dir = File.createTempFile("clustal", "", base);
+		if (!dir.delete() || !dir.mkdir())
+			throw new IOException("Can't create scratch directory "+dir);
+		return dir;
+	}
 
-		return getASPscore(alignmentFile, sequences.size());
+	private static void deleteDirectory(File dir) {
+		if (dir == null) return;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f: files)
+				f.delete();
+		}
+		dir.delete();
 	}
 
    /**
@@ -204,6 +262,8 @@ public class ClustalAlign implements Align {
 	 */
   public Map<String, String> getAlignment() { return alignMap; }
 
+	public AlignmentRows getAlignmentRows() { return rows; }
+
 
 	/**
  	 * Return the alignment itself as an HTML-formatted string
@@ -322,11 +382,16 @@ public class ClustalAlign implements Align {
 	}
 
 	private void formatAlignment(List<String> sequences) {
-		for (String seq: sequences) {
-			String sp[] = seq.split("\t");
-			String alignedSeq = alignMap.get(sp[0]);
-			alignMap.put(sp[0], formatSequence(sp[1], alignedSeq));
+		String[] names = new String[sequences.size()];
+		byte[][] aligned = new byte[sequences.size()][];
+		for (int row = 0; row < names.length; row++) {
+			String sp[] = sequences.get(row).split("\t");
+			String alignedSeq = formatSequence(sp[1], alignMap.get(sp[0]));
+			alignMap.put(sp[0], alignedSeq);
+			names[row] = sp[0];
+			aligned[row] = AlignmentRows.getBytes(alignedSeq);
 		}
+		rows = new AlignmentRows(names, aligned, alignMap.get(CONSERVATION));
 	}
 
 	private String formatSequence(String formatted, String aligned) {
@@ -0,0 +1,96 @@
+/**
+ * An EncodedSequence is a database sequence that has been prepared for scanning
+ * with PSSMs.  In a single pass over the residues we: drop anything that isn't
+ * an amino acid, turn the ambiguous codes (B, J, O, U, Z) into X, encode each residue
+ * as its index in the 21-letter alphabet "ACDEFGHIKLMNPQRSTVWXY", count the X's, and
+ * count the composition of the sequence.  The object is meant to be reused from one
+ * sequence to the next, so the arrays only grow.
+ */
+
+package dasp.algorithms;
+
+import java.nio.ByteBuffer;
+
+public class EncodedSequence {
+	public static final String ALPHABET = "ACDEFGHIKLMNPQRSTVWXY";
+	public static final int X = ALPHABET.indexOf('X');
+	static final byte SKIP = -1;
+
+	// Maps an input byte to its code, or SKIP.  Like the PSSMs, we only
+	// recognize upper case residues.
+	private static final byte[] codeTable = new byte[256];
+	// True for the residues that can't appear in a DNA sequence
+	private static final boolean[] proteinOnly = new boolean[256];
+
+	static {
+		for (int c = 0; c < 256; c++)
+			codeTable[c] = SKIP;
+		for (int aa = 0; aa < ALPHABET.length(); aa++) {
+			char c = ALPHABET.charAt(aa);
+			codeTable[c] = (byte)aa;
+			if ("ACGTX".indexOf(c) < 0)
+				proteinOnly[c] = true;
+		}
+		for (char c: "BJOUZ".toCharArray())
+			codeTable[c] = (byte)X;
+	}
+
+	private byte[] codes = new byte[1024];
+	private int length = 0;
+	private int xCount = 0;
+	private int[] counts = new int[ALPHABET.length()];
+
+	public EncodedSequence() {
+	}
+
+	/**
+	 * Encode a record held in a (possibly off-heap) slab, replacing whatever this
+	 * object held before.  Only absolute gets are used, so many threads can encode
+	 * from the same slab.
+	 *
+	 * @param residues the slab
+	 * @param offset the first residue to encode
+	 * @param residueCount the number of residues to encode
+	 * @return false if this looks like a DNA sequence (there are no residues other
+	 * than A, C, G, T and X), in which case it should be skipped
+	 */
+	public boolean encode(ByteBuffer residues, int offset, int residueCount) {
+		if (codes.length < residueCount)
+			codes = new byte[residueCount];
+		for (int aa = 0; aa < counts.length; aa++)
+			counts[aa] = 0;
+
+		boolean notDNA = false;
+		int outputIndex = 0;
+		int end = offset + residueCount;
+		for (int inputIndex = offset; inputIndex < end; inputIndex++) {
+			int c = residues.get(inputIndex) & 0xff;
+			byte code = codeTable[c];
+			if (code == SKIP) continue;
+			notDNA |= proteinOnly[c];
+			codes[outputIndex++] = code;
+			counts[code]++;
+		}
+		length = outputIndex;
+		xCount = counts[X];
+		return notDNA;
+	}
+
+	/**
+	 * Return the encoded residues.  Only the first {@link #length()} codes are valid.
+	 *
+	 * @return the residue codes
+	 */
+	public byte[] getCodes() { return codes; }
+
+	public int length() { return length; }
+
+	public int getXCount() { return xCount; }
+
+	/**
+	 * Return the number of times each residue appears in the sequence, indexed by code.
+	 *
+	 * @return the residue counts
+	 */
+	public int[] getCounts() { return counts; }
+}
@@ -15,96 +15,206 @@ import java.util.List;
 import dasp.model.PSSM;
 import dasp.model.DBSearchResult;
 import dasp.model.SearchResult;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
-import org.biojava.bio.*;
-import org.biojava.bio.seq.*;
-import org.biojava.bio.seq.io.*;
 
 public class FastAFileSearcher implements DBSearch {
+	/**
+	 * The ways we can spread the database scan over threads.  POOL is the
+	 * original round-robin over single-threaded pools, FORKJOIN uses a work-stealing
+	 * pool over batches of records, and VIRTUAL scans the same way as FORKJOIN but
+	 * reads the database on a virtual thread, which hands the filled batches over
+	 * as they're ready (on JDKs without virtual threads, the reading is done on an
+	 * ordinary thread instead).  The scan itself is CPU bound, so it always runs on
+	 * numThreads threads.
+	 */
+	public enum ExecutionMode { POOL, FORKJOIN, VIRTUAL };
+
+	private ExecutionMode mode = ExecutionMode.POOL;
+	private int unitResidues = 50000; // target number of residues in a unit of work
+	private int slabResidues = 2*1024*1024; // residues in each record batch
+	private int slabRecords = 16384; // maximum number of records in each record batch
+	private ConcurrentLinkedQueue<EncodedSequence> encoders = new ConcurrentLinkedQueue<EncodedSequence>();
+
+	// Put on the queue of filled batches when there's nothing more to read
+	private static final RecordBatch END_OF_DATABASE = new RecordBatch(0, 0);
+
+	public FastAFileSearcher() {
+	}
+
+	public FastAFileSearcher(ExecutionMode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Convert a command-line name ("pool", "forkjoin", or "virtual") into
+	 * an ExecutionMode.
+	 *
+	 * @param name the name of the mode
+	 * @return the execution mode
+	 * @throws IllegalArgumentException if the name isn't a known mode
+	 */
+	public static ExecutionMode parseMode(String name) {
+		return ExecutionMode.valueOf(name.trim().toUpperCase());
+	}
+
+	public ExecutionMode getMode() { return mode; }
+
 	public List<DBSearchResult> search(File database, List<PSSM>pssmList, 
 									   PSSMSearch searchAlg, double threshold, int numThreads) throws Exception {
 		//
 		// Open database - done
-		// Find a sequence - done
-		// 	 Create a search result for that sequence
-		//	 Massage the sequence
-		//	 Search using searchAlg
-		//	 Apply results to result
-		//	 If search significant, add to list
+		// Read a batch of sequences into a slab - done
+		// 	 Split the batch into units of work
+		//	 For each sequence in a unit:
+		//	   Massage the sequence
+		//	   Search using searchAlg
+		//	   If search significant, create a search result and add to list
 		
 		//open the database file for searching
-		//get the fasta file iterator
-		SequenceIterator fastaIter = parseDBfile(database, "fasta");
+		FastAReader reader = new FastAReader(database);
 
 		//Create a database search results list
 		//only significant sequence search results are added to this object
 		List<DBSearchResult> DBresults = new ArrayList();
-		int sequenceNumber = 0;
+		Search search = new Search(pssmList, searchAlg, threshold, DBresults);
 
-		ExecutorService[] threadPools = new ExecutorService[numThreads];
-		for (int pool = 0; pool < threadPools.length; pool++)
-			threadPools[pool] = Executors.newFixedThreadPool(1);
+		ExecutorService[] executors = createExecutors(numThreads);
+		int batchCount = numThreads*2+2;
+		RecordBatchPool batches = new RecordBatchPool(batchCount, slabResidues, slabRecords);
+		LinkedList<Future<?>> inFlight = new LinkedList<Future<?>>();
+		int nextExecutor = 0;
+
+		// In VIRTUAL mode the database is read on its own thread.  The queue can hold
+		// every batch (and the end marker), so the reader never waits on it.
+		ExecutorService readAhead = null;
+		BlockingQueue<RecordBatch> filled = null;
+		Future<Void> reading = null;
+		if (mode == ExecutionMode.VIRTUAL) {
+			readAhead = newVirtualThreadExecutor();
+			if (readAhead == null) {
+				System.err.println("Virtual threads are not available in this JVM: reading the database on a platform thread");
+				readAhead = Executors.newSingleThreadExecutor();
+			}
+			filled = new ArrayBlockingQueue<RecordBatch>(batchCount+1);
+			reading = readAhead.submit(new ReadAhead(reader, batches, filled));
+		}
 
-		//iterate through each sequence in the file
-		int maxQueueDepth = 1000;
-		while(fastaIter.hasNext()){
-			for (int queueCount = 0; queueCount < maxQueueDepth; queueCount++) {
-				for (int pool = 0; pool < threadPools.length; pool++) {
-					if (fastaIter.hasNext()) {
-						Sequence curSeq = fastaIter.nextSequence();
-						Runnable r = new ParallelSearcher(curSeq, pssmList, searchAlg, threshold, DBresults, sequenceNumber++);
-						threadPools[pool].submit(r);
-					}
+		try {
+			while (true) {
+				RecordBatch batch;
+				if (filled != null) {
+					batch = filled.take();
+					if (batch == END_OF_DATABASE)
+						break;
+				} else {
+					// This waits for a batch to come back if they're all being searched
+					batch = batches.acquire();
+					if (!reader.fill(batch))
+						break;
 				}
+				nextExecutor = submitBatch(batch, search, executors, nextExecutor, inFlight);
+
+				// Collect the units that are done (and any exceptions they threw)
+				while (inFlight.size() > 0 && inFlight.getFirst().isDone())
+					inFlight.removeFirst().get();
 			}
 
-			// OK, now wait for all the threads to complete
-			for (int pool = 0; pool < threadPools.length; pool++) {
-				threadPools[pool].shutdown();
-				try {
-					boolean result = threadPools[pool].awaitTermination(7, TimeUnit.DAYS);
-				} catch (Exception e) {}
-				threadPools[pool] = Executors.newFixedThreadPool(1);
+			// Pick up any exception the reader threw
+			if (reading != null)
+				reading.get();
+
+			// Wait for the stragglers
+			while (inFlight.size() > 0)
+				inFlight.removeFirst().get();
+		} finally {
+			for (ExecutorService executor: executors)
+				executor.shutdownNow();
+			if (readAhead != null) {
+				// Don't close the file out from under the reader
+				readAhead.shutdownNow();
+				readAhead.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			}
+			reader.close();
 		}
 		
 		return DBresults;
 	}
 
-  /**
-   * Get a Sequence Iterator over all the sequences in the file.
-   * SeqIOTools.fileToBiojava() returns an Object. If the file read
-   * is an alignment format like MSF and Alignment object is returned
-   * otherwise a SequenceIterator is returned.
+	/**
+	 * Split a batch into units of work and hand them to the executors.  Since the cost of
+	 * scanning a sequence is proportional to its length, units are formed by residue count
+	 * rather than by number of records: we sort the batch longest first, and pack it into
+	 * units of about unitResidues residues each.  The longest units go out first, so we
+	 * don't end up waiting on one huge sequence at the end.
 	 *
-	 * @param inFile the file to read from
-	 * @param fileFormat a string that represents the file format to read (e.g. "fasta").
-	 * @return an iterator over all of the sequences in the file
-   */
-	private SequenceIterator parseDBfile(File inFile, String fileFormat) throws IOException {
-
-		String alphabet = "protein";
-		SequenceIterator iter = null;
-		try {
-		  iter = (SequenceIterator)SeqIOTools.fileToBiojava(fileFormat,alphabet, new BufferedReader(new FileReader(inFile)));
-		}
-		catch (BioException ex) {
-			throw new IOException(ex.getMessage());
+	 * @return the index of the next executor to use
+	 */
+	private int submitBatch(RecordBatch batch, Search search, ExecutorService[] executors,
+	                        int nextExecutor, List<Future<?>> inFlight) {
+		int[] records = batch.byLength();
+
+		// Hold on to the batch until all of the units have been submitted
+		batch.retain(1);
+		int unitStart = 0;
+		int unitLength = 0;
+		for (int record = 0; record < batch.size(); record++) {
+			unitLength += batch.getLength(records[record]);
+			if (unitLength >= unitResidues || record == batch.size()-1) {
+				batch.retain(1);
+				BatchSearcher task = new BatchSearcher(search, batch, records, unitStart, record+1, true);
+				ExecutorService executor = executors[nextExecutor];
+				nextExecutor = (nextExecutor+1) % executors.length;
+				if (executor instanceof ForkJoinPool)
+					inFlight.add(((ForkJoinPool)executor).submit((ForkJoinTask<Void>)task));
+				else
+					inFlight.add(executor.submit((Runnable)task));
+				unitStart = record+1;
+				unitLength = 0;
+			}
 		}
-		catch (FileNotFoundException ex) {
-			throw new IOException(ex.getMessage());
+		batch.release();
+		return nextExecutor;
+	}
+
+	private ExecutorService[] createExecutors(int numThreads) {
+		if (mode != ExecutionMode.POOL)
+			return new ExecutorService[] {new ForkJoinPool(numThreads)};
+
+		ExecutorService[] threadPools = new ExecutorService[numThreads];
+		for (int pool = 0; pool < threadPools.length; pool++)
+			threadPools[pool] = Executors.newFixedThreadPool(1);
+		return threadPools;
+	}
+
+	/**
+	 * Get an executor that starts a new virtual thread for each task.  We look this
+	 * up reflectively so that we still run on JDKs without virtual threads.
+	 *
+	 * @return the executor, or null if virtual threads aren't supported
+	 */
+	private ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
 		}
-		return iter;
 	}
 
 	//QFAST algorithm: for finding the p-value of a product of p-values
@@ -123,134 +233,156 @@ public class FastAFileSearcher implements DBSearch {
 		return q;
 	}
 
-	class ParallelSearcher implements Runnable {
-		final Sequence curSeq;
+	/**
+	 * Read the database into batches and hand them over on a queue, ending with
+	 * END_OF_DATABASE (which goes on the queue even if reading fails).
+	 */
+	class ReadAhead implements Callable<Void> {
+		final FastAReader reader;
+		final RecordBatchPool batches;
+		final BlockingQueue<RecordBatch> filled;
+
+		public ReadAhead(FastAReader reader, RecordBatchPool batches, BlockingQueue<RecordBatch> filled) {
+			this.reader = reader;
+			this.batches = batches;
+			this.filled = filled;
+		}
+
+		public Void call() throws Exception {
+			try {
+				while (true) {
+					// This waits for a batch to come back if they're all being searched
+					RecordBatch batch = batches.acquire();
+					if (!reader.fill(batch))
+						break;
+					filled.put(batch);
+				}
+			} finally {
+				filled.offer(END_OF_DATABASE);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A unit of work: a range of records from a batch.  When run in a ForkJoinPool, the range is
+	 * split in half until it is a single record, so idle workers can steal the other half.
+	 * Otherwise, the records are simply searched in order.  The unit that was submitted (the owner)
+	 * gives the batch back when it's done.
+	 */
+	class BatchSearcher extends RecursiveAction implements Runnable {
+		private static final long serialVersionUID = 1L;
+
+		final Search search;
+		final RecordBatch batch;
+		final int[] records;
+		final int start;
+		final int end;
+		final boolean owner;
+
+		public BatchSearcher(Search search, RecordBatch batch, int[] records, int start, int end, boolean owner) {
+			this.search = search;
+			this.batch = batch;
+			this.records = records;
+			this.start = start;
+			this.end = end;
+			this.owner = owner;
+		}
+
+		public void run() {
+			try {
+				searchRange();
+			} finally {
+				if (owner) batch.release();
+			}
+		}
+
+		protected void compute() {
+			try {
+				if (end - start <= 1) {
+					searchRange();
+				} else {
+					int middle = (start + end) >>> 1;
+					invokeAll(new BatchSearcher(search, batch, records, start, middle, false),
+					          new BatchSearcher(search, batch, records, middle, end, false));
+				}
+			} finally {
+				if (owner) batch.release();
+			}
+		}
+
+		private void searchRange() {
+			//We have a seqeunce, now munch it: this gets us the encoded residues,
+			//the xCount and the composition in one pass.  The encoded sequences
+			//are reused, but we can't tie them to a thread since a ForkJoin worker
+			//can pick up another sequence while it waits on windows of this one.
+			EncodedSequence munchSeq = encoders.poll();
+			if (munchSeq == null)
+				munchSeq = new EncodedSequence();
+			try {
+				for (int record = start; record < end; record++)
+					search.searchRecord(batch, records[record], munchSeq);
+			} finally {
+				encoders.offer(munchSeq);
+			}
+		}
+	}
+
+	/**
+	 * The state of a single database search.
+	 */
+	class Search {
 		final List<PSSM> pssmList;
 		final PSSMSearch searchAlg;
 		final double threshold;
 		final List<DBSearchResult> DBresults;
-		int xCount = 0;
-		int sequenceNumber;
 
-		public ParallelSearcher(Sequence curSeq, List<PSSM>pssmList, 
-		                        PSSMSearch searchAlg, double threshold, List<DBSearchResult> DBresults,
-		                        int sequenceNumber) {
-			this.curSeq = curSeq;
+		public Search(List<PSSM>pssmList, PSSMSearch searchAlg, double threshold,
+		              List<DBSearchResult> DBresults) {
 			this.pssmList = pssmList;
 			this.searchAlg = searchAlg;
 			this.threshold = threshold;
 			this.DBresults = DBresults;
-			this.sequenceNumber = sequenceNumber;
 		}
 
-		public void run() {
-			/**
-			 * ISSUE: getName() seems to truncate at the first space in the
-			 * fasta name line.  Have not looked at how to get around that.
-			 * Currently I have pre-inserted 4 $ chars for each space in the
-			 * test DB fasta file, and then I parse those out and replace with spaces before
-			 * I print out the name.  I don't like to do that, but we need
-			 * all the information on each line.  Will look into fixing this issue later.
-			 */
+		/**
+		 * Search one record.  NOTE: the full header line is kept as bytes in the batch,
+		 * and we only decode it (with batch.getName()) for the sequences that pass.
+		 */
+		public void searchRecord(RecordBatch batch, int record, EncodedSequence munchSeq) {
 			boolean debug = false;
-			String seqName = curSeq.getName().replaceAll("\\${4}", " ");
-			// System.out.println("\n\nSeqName:"+seqName+"\nFullSeq:"+curSeq.seqString());
 
-			//We have a seqeunce, now munch it and get the xCount
-			this.xCount = 0;
-			String munchSeq = munchSequence(curSeq.seqString());
+			//munchSeq will be false if it is a DNA sequence, so we want to skip that.
+			if(!munchSeq.encode(batch.getResidues(), batch.getOffset(record), batch.getLength(record)))
+				return;
+
 			if (debug)
-				System.out.println("\n\nSeqName:"+seqName+"\nmunchSeq:"+munchSeq);
-
-			//munchSeq will be null if it is a DNA sequence, so we want to skip that.
-			if(munchSeq!=null){
-				// XXX Should this be in a separate thread?
-				//now we can call the search routine
-				SearchResult[] seqResults = searchAlg.search(pssmList, munchSeq, xCount, debug);
-
-				//The search alg will return null for the seqResults if one or
-					//more of the profile fragments did not match to the seqeunce.
-				if(seqResults!=null){
-					//Need to get the product of the pvalues to pass to QFAST
-					double product=1.0;
-					for(SearchResult r: seqResults){
-						product *= r.getPvalue();
-					}
-					double finalPval = QFAST(pssmList.size(), product);
-
-					//print out results we have for this sequence.
-					// System.out.println("\nSearch Results for sequence:"+seqName+"\nFinal Pvalue="+finalPval);
-					//int sIndex = 0;
-					//for(SearchResult s: seqResults){
-					//	System.out.println("Match "+sIndex+":Index "+s.getIndex()+":Length "+s.getPssmLength()+":Pvalue "+s.getPvalue()+":SubStr "+munchSeq.substring(s.getIndex(), s.getIndex()+s.getPssmLength()));
-					//	sIndex++;
-					//}
-
-
-					//if the pval is significant then create and DBSearchResults object and add to list.
-					if(finalPval > 0.0 && finalPval < threshold){
-						System.out.println("Seq "+seqName+" PASSED.  Final pValue = "+finalPval);
-						DBSearchResult result = new DBSearchResult(finalPval, seqResults, seqName, curSeq.seqString());
-						synchronized (DBresults) {
-							DBresults.add(result);
-						}
-					}
-				}
+				System.out.println("\n\nSeqName:"+batch.getName(record)+"\nmunchSeq length:"+munchSeq.length());
+
+			//now we can call the search routine
+			SearchResult[] seqResults = searchAlg.search(pssmList, munchSeq, debug);
+
+			//The search alg will return null for the seqResults if one or
+			//more of the profile fragments did not match to the seqeunce.
+			if(seqResults==null)
+				return;
+
+			//Need to get the product of the pvalues to pass to QFAST
+			double product=1.0;
+			for(SearchResult r: seqResults){
+				product *= r.getPvalue();
 			}
-			// System.out.print("Finished "+sequenceNumber+"\r");
-		}
+			double finalPval = QFAST(pssmList.size(), product);
 
-		private String munchSequence(String sequence) {
-			char[] inputSequence = sequence.toCharArray();
-			char[] outputSequence = new char[inputSequence.length+1];
-			int outputIndex = 0;
-			boolean notDNA = false;
-			for (int inputIndex = 0; inputIndex < inputSequence.length; inputIndex++) {
-				char seq = inputSequence[inputIndex];
-				switch (seq) {
-				case 'Z':
-				case 'B':
-				case 'J':
-				case 'O':
-				case 'U':
-				case 'X':
-					outputSequence[outputIndex++] = 'X';
-					this.xCount++;
-					break;
-	
-				case 'D':
-				case 'E':
-				case 'F':
-				case 'H':
-				case 'I':
-				case 'K':
-				case 'L':
-				case 'M':
-				case 'N':
-				case 'P':
-				case 'Q':
-				case 'R':
-				case 'S':
-				case 'V':
-				case 'W':
-				case 'Y':
-					notDNA = true;
-				case 'A':
-				case 'C':
-				case 'T':
-				case 'G':
-					outputSequence[outputIndex++] = seq;
-					break;
-	
+			//if the pval is significant then create and DBSearchResults object and add to list.
+			if(finalPval > 0.0 && finalPval < threshold){
+				String seqName = batch.getName(record);
+				System.out.println("Seq "+seqName+" PASSED.  Final pValue = "+finalPval);
+				DBSearchResult result = new DBSearchResult(finalPval, seqResults, seqName, batch.seqString(record));
+				synchronized (DBresults) {
+					DBresults.add(result);
 				}
 			}
-	
-			outputSequence[outputIndex] = 0;
-	
-			if (notDNA)
-				return new String(outputSequence).trim();
-	
-			return null;
 		}
 	}
 }
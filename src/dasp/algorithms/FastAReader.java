@@ -0,0 +1,134 @@
+/**
+ * A minimal streaming reader for FASTA-formatted sequence databases.  Unlike the
+ * BioJava parser, this keeps the entire header line (BioJava truncates the name at
+ * the first space), and keeps it as raw bytes: we only need to turn it into a String
+ * for the handful of sequences that actually match our profile.
+ */
+
+package dasp.algorithms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class FastAReader {
+	private InputStream input = null;
+	private byte[] buffer = new byte[65536];
+	private int bufferLength = 0;
+	private int bufferPosition = 0;
+	private boolean eof = false;
+
+	private byte[] header = new byte[256];
+	private int headerLength = 0;
+	private byte[] nextHeader = new byte[256];
+	private int nextHeaderLength = 0;
+	private byte[] residues = new byte[4096];
+	private int residueLength = 0;
+	private boolean haveHeader = false;
+	private boolean pending = false; // the record in our buffers hasn't been handed out yet
+
+	public FastAReader(File database) throws IOException {
+		this.input = new FileInputStream(database);
+	}
+
+	public FastAReader(InputStream input) {
+		this.input = input;
+	}
+
+	/**
+	 * Read records straight into a batch until it is full.  This doesn't create
+	 * any objects per record: the header and residues are copied from our buffers
+	 * into the batch's slabs.
+	 *
+	 * @param batch the (empty) batch to fill
+	 * @return false if there were no more records to read
+	 * @throws IOException on read errors
+	 */
+	public boolean fill(RecordBatch batch) throws IOException {
+		while (pending || readRecord()) {
+			if (!batch.add(header, headerLength, residues, residueLength)) {
+				// Hang on to this one for the next batch
+				pending = true;
+				break;
+			}
+			pending = false;
+		}
+		return batch.size() > 0;
+	}
+
+	/**
+	 * Read the next record into our header and residue buffers.
+	 *
+	 * @return false if there are no more records
+	 */
+	private boolean readRecord() throws IOException {
+		// Skip anything before the first header
+		while (!haveHeader) {
+			int c = read();
+			if (c < 0) return false;
+			if (c == '>') {
+				readHeader();
+				haveHeader = true;
+			}
+		}
+
+		// The header we have is for this record
+		System.arraycopy(nextHeader, 0, header, 0, nextHeaderLength);
+		headerLength = nextHeaderLength;
+
+		residueLength = 0;
+		boolean lineStart = true;
+		int c;
+		while ((c = read()) >= 0) {
+			if (c == '>' && lineStart) {
+				readHeader();
+				return true;
+			}
+			lineStart = (c == '\n');
+			if (c <= ' ') continue;
+			if (c >= 'a' && c <= 'z') c -= ('a' - 'A');
+			if (residueLength == residues.length)
+				residues = Arrays.copyOf(residues, residues.length*2);
+			residues[residueLength++] = (byte)c;
+		}
+
+		// Last record in the file
+		haveHeader = false;
+		return true;
+	}
+
+	public void close() throws IOException {
+		input.close();
+	}
+
+	private void readHeader() throws IOException {
+		nextHeaderLength = 0;
+		int c;
+		while ((c = read()) >= 0 && c != '\n') {
+			if (nextHeaderLength == nextHeader.length)
+				nextHeader = Arrays.copyOf(nextHeader, nextHeader.length*2);
+			nextHeader[nextHeaderLength++] = (byte)c;
+		}
+		// Handle DOS line endings
+		if (nextHeaderLength > 0 && nextHeader[nextHeaderLength-1] == '\r')
+			nextHeaderLength--;
+		if (header.length < nextHeader.length)
+			header = new byte[nextHeader.length];
+	}
+
+	private int read() throws IOException {
+		if (bufferPosition == bufferLength) {
+			if (eof) return -1;
+			bufferLength = input.read(buffer, 0, buffer.length);
+			bufferPosition = 0;
+			if (bufferLength <= 0) {
+				bufferLength = 0;
+				eof = true;
+				return -1;
+			}
+		}
+		return buffer[bufferPosition++] & 0xff;
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * FragmentSimilarityMatrix holds the similarity of every pair of fragments from a
+ * set of active site signatures, so that code trying out different groupings of the
+ * fragments can look the scores up rather than aligning the fragments again.  The
+ * similarity of two fragments is the best score of an ungapped local alignment of
+ * the two with BLOSUM62 (fragments are short, so there's little to gain from
+ * allowing gaps).  The matrix is filled in once, in parallel.
+ */
+
+package dasp.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dasp.model.ActiveSiteSignature;
+
+public class FragmentSimilarityMatrix {
+	private int[] offset;     // where each signature's fragments start
+	private byte[][] codes;   // each fragment as BLOSUM62 codes
+	private int size;
+	private double[] scores;  // upper triangle, row by row
+
+	/**
+	 * Build the matrix for all of the fragments of the signatures.
+	 *
+	 * @param signatures the active site signatures
+	 * @param radius the profile radius
+	 * @param threads the number of threads to use
+	 */
+	public FragmentSimilarityMatrix(List<ActiveSiteSignature> signatures, double radius, int threads) {
+		// The fragment signatures are cached in each signature, so get them here
+		// before we go parallel
+		offset = new int[signatures.size()+1];
+		List<byte[]> fragments = new ArrayList<byte[]>();
+		for (int s = 0; s < signatures.size(); s++) {
+			ActiveSiteSignature sig = signatures.get(s);
+			int count = sig.fragCount();
+			for (int i = 0; i < count; i++)
+				fragments.add(encode(sig.getFragmentAsSig(i).getSignature(radius)));
+			offset[s+1] = offset[s]+count;
+		}
+		size = fragments.size();
+		codes = fragments.toArray(new byte[size][]);
+		scores = new double[size*(size-1)/2];
+		fill(Math.max(1, threads));
+	}
+
+	/**
+	 * Return the number of fragments the matrix has for a signature.
+	 */
+	public int getFragmentCount(int signature) {
+		return offset[signature+1]-offset[signature];
+	}
+
+	/**
+	 * Return the similarity of two fragments.
+	 *
+	 * @param sig1 the first signature
+	 * @param frag1 the fragment of the first signature
+	 * @param sig2 the second signature
+	 * @param frag2 the fragment of the second signature
+	 * @return the similarity score
+	 */
+	public double getScore(int sig1, int frag1, int sig2, int frag2) {
+		int a = offset[sig1]+frag1;
+		int b = offset[sig2]+frag2;
+		if (a == b)
+			return similarity(codes[a], codes[b]);
+		if (a > b) {
+			int t = a; a = b; b = t;
+		}
+		return scores[index(a)+(b-a-1)];
+	}
+
+	private void fill(int threads) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Rows get shorter as we go, so deal them out round robin
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int t = 0; t < threads; t++) {
+				final int first = t;
+				final int step = threads;
+				results.add(pool.submit(new Callable<Object>() {
+					public Object call() {
+						for (int a = first; a < size; a += step) {
+							int row = index(a);
+							for (int b = a+1; b < size; b++)
+								scores[row+(b-a-1)] = similarity(codes[a], codes[b]);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> result: results)
+				result.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Where row a of the upper triangle starts
+	private int index(int a) {
+		return a*(2*size-a-1)/2;
+	}
+
+	private static byte[] encode(String sequence) {
+		byte[] encoded = new byte[sequence.length()];
+		for (int i = 0; i < encoded.length; i++)
+			encoded[i] = (byte)Blosum62.index(sequence.charAt(i));
+		return encoded;
+	}
+
+	// The similarity of two sequences is the best score of an ungapped local
+	// alignment of the two, using BLOSUM62.  Run along every diagonal, keeping
+	// the best run (Kadane's algorithm).
+	private static double similarity(byte[] a, byte[] b) {
+		int best = 0;
+		for (int offset = -(b.length-1); offset < a.length; offset++) {
+			int run = 0;
+			int end = Math.min(a.length, b.length+offset);
+			for (int i = Math.max(0, offset); i < end; i++) {
+				run += Blosum62.score(a[i], b[i-offset]);
+				if (run < 0)
+					run = 0;
+				else if (run > best)
+					best = run;
+			}
+		}
+		return best;
+	}
+}
@@ -6,6 +6,7 @@
 package dasp.algorithms;
 
 import dasp.model.Alignment;
+import dasp.model.AlignmentRows;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -26,6 +27,7 @@ public class NullAlign implements Align {
 	private Alignment alignment = null;
 	private double percentID = 0.0;
 	private Map<String, String> alignMap;
+	private AlignmentRows rows = new AlignmentRows();
 	private int match=0,strong=0,weak=0,totalGaps=0,alnLength=0;
 
 	/**
@@ -43,10 +45,15 @@ public class NullAlign implements Align {
 	 * @return the alignment score
 	 */
 	public double align(List<String> sequences) {
-		for (String seq: sequences) {
-			String[] line = seq.split("\t");
+		String[] names = new String[sequences.size()];
+		byte[][] aligned = new byte[sequences.size()][];
+		for (int row = 0; row < names.length; row++) {
+			String[] line = sequences.get(row).split("\t");
 			alignMap.put(line[0], line[1]);
+			names[row] = line[0];
+			aligned[row] = AlignmentRows.getBytes(line[1]);
 		}
+		rows = new AlignmentRows(names, aligned, null);
 
 		return 1.0;
 	}
@@ -91,6 +98,8 @@ public class NullAlign implements Align {
 	 */
   public Map<String, String> getAlignment() { return alignMap; }
 
+  public AlignmentRows getAlignmentRows() { return rows; }
+
 
 	/**
  	 * Return the alignment itself as an HTML-formatted string
@@ -0,0 +1,622 @@
+/**
+ * This is an implementation of a progressive multiple alignment done entirely in
+ * Java, so we don't have to run ClustalW for every alignment.  The steps are the
+ * usual ones: every pair of sequences is aligned to get a distance (one minus the
+ * fraction of identical aligned residues), the distances are clustered with UPGMA
+ * to give a guide tree, and then the profiles are aligned up the tree using BLOSUM62
+ * with affine gap penalties.  Gaps at the ends of a sequence are free, since our
+ * fragments often only overlap in part.  The result has the same form as the
+ * ClustalAlign result, including the conservation line.
+ */
+
+package dasp.algorithms;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dasp.model.AlignmentRows;
+import dasp.model.ColumnScorer;
+
+public class ProgressiveAlign implements Align {
+	// The ClustalW defaults for multiple alignment
+	private static final double GAP_OPEN = 10.0;
+	private static final double GAP_EXTEND = 0.2;
+	private static final byte GAP = -1;
+
+	// Which way we came into a cell of the dynamic programming matrices
+	private static final byte FROM_MATCH = 0;
+	private static final byte FROM_GAP_A = 1; // a column of A against a gap
+	private static final byte FROM_GAP_B = 2; // a column of B against a gap
+
+	private Map<String, String> alignMap;
+	private AlignmentRows alignmentRows = new AlignmentRows();
+	private int match=0,strong=0,weak=0,totalGaps=0,alnLength=0;
+
+	/**
+	 * A set of sequences that have been aligned to each other.
+	 */
+	private static class Profile {
+		int[] members;    // the input rows in this profile
+		byte[][] rows;    // residue codes (or GAP) for each member
+		int width;
+		double score = 0.0; // the score of the alignment that made this profile
+		boolean[] usedA = null; // which columns have a column of A (from align)
+
+		Profile(int member, String sequence) {
+			members = new int[] {member};
+			width = sequence.length();
+			rows = new byte[1][width];
+			for (int i = 0; i < width; i++)
+				rows[0][i] = (byte)Blosum62.index(sequence.charAt(i));
+		}
+
+		Profile(int[] members, byte[][] rows, int width) {
+			this.members = members;
+			this.rows = rows;
+			this.width = width;
+		}
+
+		int[][] counts = null;        // how many of each residue there are in each column
+		int[][] residues = null;      // which residues there are in each column
+		double[][] columnScores = null; // the score of each residue against each column
+
+		// Work out the column summaries the first time we need them.  Single
+		// sequences are aligned against every other sequence, so this saves a lot.
+		void summarize() {
+			if (counts != null) return;
+			counts = new int[width][Blosum62.SIZE];
+			for (byte[] row: rows) {
+				for (int column = 0; column < width; column++) {
+					if (row[column] != GAP)
+						counts[column][row[column]]++;
+				}
+			}
+
+			residues = new int[width][];
+			columnScores = new double[width][Blosum62.SIZE];
+			for (int column = 0; column < width; column++) {
+				int found = 0;
+				for (int x = 0; x < Blosum62.SIZE; x++)
+					if (counts[column][x] != 0) found++;
+				residues[column] = new int[found];
+				found = 0;
+				for (int x = 0; x < Blosum62.SIZE; x++) {
+					if (counts[column][x] == 0) continue;
+					residues[column][found++] = x;
+					for (int y = 0; y < Blosum62.SIZE; y++)
+						columnScores[column][y] += counts[column][x]*Blosum62.score(x, y);
+				}
+			}
+		}
+	}
+
+	public ProgressiveAlign() {
+		alignMap = new HashMap<String, String>();
+	}
+
+	/**
+	 * align actually performs the alignment.
+	 *
+	 * @param sequences the sequences as "name\tsequence" strings
+	 * @return the alignment score
+	 */
+	public double align(List<String> sequences) {
+		int count = sequences.size();
+		String[] names = new String[count];
+		String[] residues = new String[count];
+		List<Profile> profiles = new ArrayList<Profile>();
+		for (int row = 0; row < count; row++) {
+			String sp[] = sequences.get(row).split("\t");
+			names[row] = sp[0];
+			residues[row] = sp[1];
+			if (!sp[1].equals("-"))
+				profiles.add(new Profile(row, sp[1]));
+		}
+
+		if (profiles.size() <= 1) {
+			// Special case.  We only have one sequence, so we just construct an alignment
+			// (just as ClustalAlign does)
+			int length = profiles.size() == 0 ? 1 : residues[profiles.get(0).members[0]].length();
+			byte[][] rows = new byte[count][];
+			for (int row = 0; row < count; row++) {
+				if (residues[row].equals("-"))
+					alignMap.put(names[row], pad('-', length));
+				else
+					alignMap.put(names[row], residues[row]);
+				rows[row] = AlignmentRows.getBytes(alignMap.get(names[row]));
+			}
+			alignmentRows = new AlignmentRows(names, rows, null);
+			return 0.0;
+		}
+
+		Profile aligned = alignProfiles(profiles);
+
+		// Put the input residues back (keeping their case) and fill in the gaps
+		alnLength = aligned.width;
+		char[][] alignment = new char[count][];
+		for (int i = 0; i < aligned.members.length; i++) {
+			int member = aligned.members[i];
+			char[] row = new char[alnLength];
+			int position = 0;
+			for (int column = 0; column < alnLength; column++) {
+				if (aligned.rows[i][column] == GAP)
+					row[column] = '-';
+				else
+					row[column] = residues[member].charAt(position++);
+			}
+			alignment[member] = row;
+		}
+		byte[][] rows = new byte[count][alnLength];
+		for (int row = 0; row < count; row++) {
+			if (alignment[row] == null) {
+				alignMap.put(names[row], pad('-', alnLength));
+				Arrays.fill(rows[row], (byte)'-');
+			} else {
+				alignMap.put(names[row], new String(alignment[row]));
+				for (int column = 0; column < alnLength; column++)
+					rows[row][column] = (byte)alignment[row][column];
+			}
+		}
+		String conservation = conservation(alignment);
+		alignMap.put(CONSERVATION, conservation);
+		alignmentRows = new AlignmentRows(names, rows, conservation);
+
+		return getASPscore(null, count);
+	}
+
+  /**
+   * Return the ASP score as defined in Cammer et al for this alignment.
+   *
+   * @return the ASP score
+   */
+  public double getASPscore(File alnFile, int numSequences){
+		double Si = 1.0;
+		double Ss = 0.2;
+		double Sw = 0.1;
+		double Sg = -0.5;
+		return (Si*match + Ss*strong + Sw*weak + Sg*totalGaps)/alnLength;
+  }
+
+  /**
+	 * Return the % identity for all of the sequences in the alignment.
+	 *
+	 * @return the % identity
+	 */
+  public double getIdentity() {
+    return 0.0;
+  }
+
+  /**
+	 * Return the alignment itself with each sequence as a single string and with dashes inserted
+	 * to account for insertions.
+	 *
+	 * @return the alignment
+	 */
+  public Map<String, String> getAlignment() { return alignMap; }
+
+	public AlignmentRows getAlignmentRows() { return alignmentRows; }
+
+	/**
+ 	 * Return the alignment itself as an HTML-formatted string
+ 	 * to account for insertions.
+ 	 *
+ 	 * @param alignment the string alignment
+ 	 * @return the HTML formatted alignment
+ 	 */
+	public String getHTMLAlignment(Map<String, String> alignment) { return null; }
+
+	public Align NewAlignFactory() {
+		return new ProgressiveAlign();
+	}
+
+	/**
+	 * Add a signature to a profile we already have, without realigning the rows that
+	 * are there.  A profile is made of blocks of columns, one for each group of
+	 * aligned fragments, in alternating case.  Each fragment of the new signature is
+	 * aligned against the block it fits best (each block takes at most one fragment),
+	 * and must overlap it: only the columns of the block can hang off the ends for
+	 * free.  The existing rows only change by picking up gaps in the columns added for
+	 * residues that don't line up with anything, and fragments that don't fit any
+	 * block go in new blocks at the end.  The new row takes the case of each block.
+	 *
+	 * @param alignment the aligned rows
+	 * @param name the name of the new signature
+	 * @param fragments the fragments of the new signature
+	 * @return the new alignment, with the new signature as the last row
+	 */
+	public AlignmentRows addFragments(AlignmentRows alignment, String name, List<String> fragments) {
+		int count = alignment.size();
+		int[] blocks = findBlocks(alignment);
+		int blockCount = blocks.length-1;
+		int[] members = new int[count];
+		for (int r = 0; r < count; r++)
+			members[r] = r;
+
+		// Align every fragment against every block
+		Profile[][] aligned = new Profile[fragments.size()][blockCount];
+		for (int b = 0; b < blockCount; b++) {
+			int width = blocks[b+1]-blocks[b];
+			byte[][] rows = new byte[count][width];
+			for (int r = 0; r < count; r++) {
+				byte[] row = alignment.getRow(r);
+				for (int column = 0; column < width; column++) {
+					byte c = row[blocks[b]+column];
+					rows[r][column] = (c == '-') ? GAP : (byte)Blosum62.index((char)c);
+				}
+			}
+			Profile block = new Profile(members, rows, width);
+			for (int f = 0; f < fragments.size(); f++) {
+				if (fragments.get(f).length() > 0)
+					aligned[f][b] = align(block, new Profile(count, fragments.get(f)), false);
+			}
+		}
+
+		// Hand out the blocks, best fit first
+		int[] fragmentIn = new int[blockCount];
+		Arrays.fill(fragmentIn, -1);
+		boolean[] placed = new boolean[fragments.size()];
+		while (true) {
+			int bestF = -1, bestB = -1;
+			for (int f = 0; f < fragments.size(); f++) {
+				for (int b = 0; b < blockCount; b++) {
+					if (placed[f] || fragmentIn[b] >= 0 || aligned[f][b] == null) continue;
+					if (bestF < 0 || aligned[f][b].score > aligned[bestF][bestB].score) {
+						bestF = f;
+						bestB = b;
+					}
+				}
+			}
+			if (bestF < 0) break;
+			placed[bestF] = true;
+			fragmentIn[bestB] = bestF;
+		}
+
+		// Lay the rows back out, keeping the case of the old residues
+		StringBuilder[] out = new StringBuilder[count+1];
+		for (int r = 0; r <= count; r++)
+			out[r] = new StringBuilder();
+		boolean upper = false;
+		for (int b = 0; b < blockCount; b++) {
+			upper = blockCase(alignment, blocks[b], blocks[b+1], !upper);
+			if (fragmentIn[b] < 0) {
+				for (int column = blocks[b]; column < blocks[b+1]; column++) {
+					for (int r = 0; r < count; r++)
+						out[r].append((char)alignment.getRow(r)[column]);
+					out[count].append('-');
+				}
+				continue;
+			}
+			String fragment = fragments.get(fragmentIn[b]);
+			Profile merged = aligned[fragmentIn[b]][b];
+			int oldColumn = blocks[b], position = 0;
+			for (int column = 0; column < merged.width; column++) {
+				if (merged.usedA[column]) {
+					for (int r = 0; r < count; r++)
+						out[r].append((char)alignment.getRow(r)[oldColumn]);
+					oldColumn++;
+				} else {
+					for (int r = 0; r < count; r++)
+						out[r].append('-');
+				}
+				if (merged.rows[count][column] == GAP)
+					out[count].append('-');
+				else
+					out[count].append(setCase(fragment.charAt(position++), upper));
+			}
+		}
+
+		// Anything left over goes on the end
+		for (int f = 0; f < fragments.size(); f++) {
+			if (placed[f] || fragments.get(f).length() == 0) continue;
+			upper = !upper;
+			for (int i = 0; i < fragments.get(f).length(); i++) {
+				for (int r = 0; r < count; r++)
+					out[r].append('-');
+				out[count].append(setCase(fragments.get(f).charAt(i), upper));
+			}
+		}
+
+		String[] names = new String[count+1];
+		byte[][] rows = new byte[count+1][];
+		for (int r = 0; r < count; r++)
+			names[r] = alignment.getName(r);
+		names[count] = name;
+		for (int r = 0; r <= count; r++)
+			rows[r] = AlignmentRows.getBytes(out[r].toString());
+		return new AlignmentRows(names, rows, null);
+	}
+
+	// Find where the blocks of a profile start (with the width on the end).  All of the
+	// residues in a block have the same case, so a block starts wherever a row switches.
+	private static int[] findBlocks(AlignmentRows alignment) {
+		int width = Math.max(0, alignment.getWidth());
+		List<Integer> starts = new ArrayList<Integer>();
+		int[] lastCase = new int[alignment.size()]; // 0 for nothing yet, 1 upper, 2 lower
+		for (int column = 0; column < width; column++) {
+			boolean start = column == 0;
+			for (int r = 0; r < alignment.size(); r++) {
+				char c = (char)alignment.getRow(r)[column];
+				if (!Character.isLetter(c)) continue;
+				int rowCase = Character.isUpperCase(c) ? 1 : 2;
+				if (lastCase[r] != 0 && lastCase[r] != rowCase)
+					start = true;
+				lastCase[r] = rowCase;
+			}
+			if (start)
+				starts.add(column);
+		}
+		starts.add(width);
+		int[] blocks = new int[starts.size()];
+		for (int i = 0; i < blocks.length; i++)
+			blocks[i] = starts.get(i);
+		return blocks;
+	}
+
+	// Is a block upper case?  If it's nothing but gaps, we go with the guess.
+	private static boolean blockCase(AlignmentRows alignment, int start, int end, boolean guess) {
+		for (int column = start; column < end; column++) {
+			for (int r = 0; r < alignment.size(); r++) {
+				char c = (char)alignment.getRow(r)[column];
+				if (Character.isLetter(c))
+					return Character.isUpperCase(c);
+			}
+		}
+		return guess;
+	}
+
+	private static char setCase(char c, boolean upper) {
+		return upper ? Character.toUpperCase(c) : Character.toLowerCase(c);
+	}
+
+	/**
+	 * Build the guide tree with UPGMA and align the profiles as we join them.
+	 */
+	private Profile alignProfiles(List<Profile> profiles) {
+		int n = profiles.size();
+		double[][] distance = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = i+1; j < n; j++) {
+				distance[i][j] = distance[j][i] = distance(profiles.get(i), profiles.get(j));
+			}
+		}
+
+		Profile[] clusters = profiles.toArray(new Profile[n]);
+		int[] size = new int[n];
+		for (int i = 0; i < n; i++)
+			size[i] = 1;
+
+		for (int joins = 1; joins < n; joins++) {
+			// Find the closest pair of clusters
+			int bestI = -1, bestJ = -1;
+			for (int i = 0; i < n; i++) {
+				if (clusters[i] == null) continue;
+				for (int j = i+1; j < n; j++) {
+					if (clusters[j] == null) continue;
+					if (bestI < 0 || distance[i][j] < distance[bestI][bestJ]) {
+						bestI = i;
+						bestJ = j;
+					}
+				}
+			}
+
+			clusters[bestI] = align(clusters[bestI], clusters[bestJ]);
+			clusters[bestJ] = null;
+			for (int k = 0; k < n; k++) {
+				if (clusters[k] == null || k == bestI) continue;
+				double d = (distance[bestI][k]*size[bestI] + distance[bestJ][k]*size[bestJ])/(size[bestI]+size[bestJ]);
+				distance[bestI][k] = distance[k][bestI] = d;
+			}
+			size[bestI] += size[bestJ];
+		}
+		return clusters[0];
+	}
+
+	/**
+	 * The distance between two sequences: one minus the fraction of the aligned
+	 * positions that are identical.
+	 */
+	private double distance(Profile a, Profile b) {
+		Profile pair = align(a, b);
+		int identical = 0, aligned = 0;
+		for (int column = 0; column < pair.width; column++) {
+			byte ra = pair.rows[0][column], rb = pair.rows[1][column];
+			if (ra == GAP || rb == GAP) continue;
+			aligned++;
+			if (ra == rb) identical++;
+		}
+		if (aligned == 0)
+			return 1.0;
+		return 1.0 - (double)identical/aligned;
+	}
+
+	/**
+	 * Align two profiles.  A column pair scores the average BLOSUM62 score over
+	 * all pairs of residues in the two columns (gaps score 0).  Gaps that hang
+	 * off either end are free.
+	 */
+	private Profile align(Profile a, Profile b) {
+		return align(a, b, true);
+	}
+
+	/**
+	 * Align two profiles, saying whether columns of B can hang off the ends of A
+	 * for free (columns of A always can).
+	 */
+	private Profile align(Profile a, Profile b, boolean freeEndsB) {
+		int n = a.width, m = b.width;
+
+		// Score the columns of B against the residue scores for each column of A
+		a.summarize();
+		b.summarize();
+		double[][] columnA = a.columnScores;
+		int[][] residuesB = b.residues;
+		int[][] countsB = b.counts;
+		double scale = 1.0/(a.rows.length*b.rows.length);
+
+		// We only keep two rows of scores, but all of the traceback.  Each cell of
+		// the traceback packs where each of the three matrices came from.
+		double negInf = Double.NEGATIVE_INFINITY;
+		double[] matchPrev = new double[m+1], gapAPrev = new double[m+1], gapBPrev = new double[m+1];
+		double[] matchCur = new double[m+1], gapACur = new double[m+1], gapBCur = new double[m+1];
+		byte[][] trace = new byte[n+1][m+1];
+		for (int j = 0; j <= m; j++) {
+			matchPrev[j] = gapAPrev[j] = negInf;
+			if (j == 0)
+				gapBPrev[j] = negInf;
+			else
+				gapBPrev[j] = freeEndsB ? 0.0 : -(GAP_OPEN + (j-1)*GAP_EXTEND);
+			trace[0][j] = (byte)(FROM_GAP_B << 4);
+		}
+		matchPrev[0] = 0.0;
+
+		for (int i = 1; i <= n; i++) {
+			double[] colA = columnA[i-1];
+			matchCur[0] = gapBCur[0] = negInf;
+			gapACur[0] = 0.0;
+			trace[i][0] = (byte)(FROM_GAP_A << 2);
+			for (int j = 1; j <= m; j++) {
+				int[] colB = residuesB[j-1];
+				int[] countB = countsB[j-1];
+				double s = 0.0;
+				for (int y: colB)
+					s += colA[y]*countB[y];
+
+				// Residues against residues
+				byte fromMatch = best(matchPrev[j-1], gapAPrev[j-1], gapBPrev[j-1]);
+				matchCur[j] = s*scale + value(fromMatch, matchPrev[j-1], gapAPrev[j-1], gapBPrev[j-1]);
+
+				// A column of A against a gap (free along the last column of B)
+				double open = (j == m) ? 0.0 : GAP_OPEN;
+				double extend = (j == m) ? 0.0 : GAP_EXTEND;
+				byte fromGapA = best(matchPrev[j]-open, gapAPrev[j]-extend, gapBPrev[j]-open);
+				gapACur[j] = value(fromGapA, matchPrev[j]-open, gapAPrev[j]-extend, gapBPrev[j]-open);
+
+				// A column of B against a gap (free along the last column of A)
+				open = (i == n && freeEndsB) ? 0.0 : GAP_OPEN;
+				extend = (i == n && freeEndsB) ? 0.0 : GAP_EXTEND;
+				byte fromGapB = best(matchCur[j-1]-open, gapACur[j-1]-open, gapBCur[j-1]-extend);
+				gapBCur[j] = value(fromGapB, matchCur[j-1]-open, gapACur[j-1]-open, gapBCur[j-1]-extend);
+
+				trace[i][j] = (byte)(fromMatch | (fromGapA << 2) | (fromGapB << 4));
+			}
+			double[] swap = matchPrev; matchPrev = matchCur; matchCur = swap;
+			swap = gapAPrev; gapAPrev = gapACur; gapACur = swap;
+			swap = gapBPrev; gapBPrev = gapBCur; gapBCur = swap;
+		}
+
+		// Trace back from the best of the three ends
+		byte state = best(matchPrev[m], gapAPrev[m], gapBPrev[m]);
+		double score = value(state, matchPrev[m], gapAPrev[m], gapBPrev[m]);
+		byte[] path = new byte[n+m];
+		int length = 0;
+		int i = n, j = m;
+		while (i > 0 || j > 0) {
+			byte from = (byte)((trace[i][j] >> (2*state)) & 3);
+			path[length++] = state;
+			if (state == FROM_MATCH) {
+				i--; j--;
+			} else if (state == FROM_GAP_A) {
+				i--;
+			} else {
+				j--;
+			}
+			state = from;
+		}
+
+		// Lay out the merged rows: A's members, then B's
+		int[] members = new int[a.members.length+b.members.length];
+		System.arraycopy(a.members, 0, members, 0, a.members.length);
+		System.arraycopy(b.members, 0, members, a.members.length, b.members.length);
+		byte[][] rows = new byte[members.length][length];
+		boolean[] usedA = new boolean[length];
+		int positionA = 0, positionB = 0;
+		for (int column = 0; column < length; column++) {
+			byte step = path[length-1-column];
+			boolean useA = step != FROM_GAP_B;
+			boolean useB = step != FROM_GAP_A;
+			for (int r = 0; r < a.rows.length; r++)
+				rows[r][column] = useA ? a.rows[r][positionA] : GAP;
+			for (int r = 0; r < b.rows.length; r++)
+				rows[a.rows.length+r][column] = useB ? b.rows[r][positionB] : GAP;
+			if (useA) positionA++;
+			if (useB) positionB++;
+			usedA[column] = useA;
+		}
+		Profile merged = new Profile(members, rows, length);
+		merged.score = score;
+		merged.usedA = usedA;
+		return merged;
+	}
+
+	// Pick the best of the three ways into a cell (ties go to the match)
+	private static byte best(double fromMatch, double fromGapA, double fromGapB) {
+		if (fromMatch >= fromGapA && fromMatch >= fromGapB)
+			return FROM_MATCH;
+		if (fromGapA >= fromGapB)
+			return FROM_GAP_A;
+		return FROM_GAP_B;
+	}
+
+	private static double value(byte from, double fromMatch, double fromGapA, double fromGapB) {
+		if (from == FROM_MATCH) return fromMatch;
+		if (from == FROM_GAP_A) return fromGapA;
+		return fromGapB;
+	}
+
+	/**
+	 * Build the ClustalW-style conservation line: '*' for a fully conserved column,
+	 * ':' for a column within one of the strong groups and '.' for one within a weak
+	 * group (the groups are the residue classes in {@link ColumnScorer}).  We count
+	 * those up for the score, along with the columns that have gaps.  Rows that had
+	 * no sequence at all aren't part of the alignment, so they are left out.
+	 */
+	private String conservation(char[][] alignment) {
+		char[] line = new char[alnLength];
+		for (int column = 0; column < alnLength; column++) {
+			int mask = 0;
+			char first = 0;
+			boolean same = true;
+			boolean gap = false;
+			for (char[] row: alignment) {
+				if (row == null) continue; // no sequence at all
+				if (row[column] == '-') {
+					gap = true;
+					break;
+				}
+				char c = Character.toUpperCase(row[column]);
+				mask |= ColumnScorer.residueBit(c);
+				if (first == 0)
+					first = c;
+				else if (c != first)
+					same = false;
+			}
+
+			line[column] = ' ';
+			if (gap) {
+				totalGaps++;
+			} else if (first != 0 && same) {
+				line[column] = '*';
+				match++;
+			} else if (ColumnScorer.inStrongClass(mask)) {
+				line[column] = ':';
+				strong++;
+			} else if (ColumnScorer.inWeakClass(mask)) {
+				line[column] = '.';
+				weak++;
+			}
+		}
+		return new String(line);
+	}
+
+	private String pad(char padChar, int num) {
+		char[] padRet = new char[num];
+		for (int i = 0; i < num; i++)
+			padRet[i] = padChar;
+		return new String(padRet);
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * A RecordBatch holds a run of database records in reusable slabs: the residues
+ * live in a single direct (off-heap) ByteBuffer at one byte each, the header lines
+ * in a single byte array, and the offsets and lengths of each record in primitive
+ * arrays.  Batches come from a {@link RecordBatchPool} and go back to it once every
+ * unit of work that was scanning them is done, so a long database scan allocates
+ * almost nothing per sequence and the heap stays flat.
+ */
+
+package dasp.algorithms;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecordBatch {
+	private ByteBuffer residues = null;
+	private byte[] headers = null;
+	private int residueUsed = 0;
+	private int headerUsed = 0;
+
+	private int count = 0;
+	private int maxRecords = 0;
+	private int[] residueOffset = null;
+	private int[] residueLength = null;
+	private int[] headerOffset = null;
+	private int[] headerLength = null;
+	private long[] order = null;
+	private int[] sorted = null;
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private RecordBatchPool pool = null;
+
+	/**
+	 * Create a new batch.
+	 *
+	 * @param residueCapacity the number of residues the slab holds
+	 * @param maxRecords the maximum number of records in the batch
+	 */
+	public RecordBatch(int residueCapacity, int maxRecords) {
+		this.residues = ByteBuffer.allocateDirect(residueCapacity);
+		this.headers = new byte[maxRecords*64];
+		this.maxRecords = maxRecords;
+		residueOffset = new int[maxRecords];
+		residueLength = new int[maxRecords];
+		headerOffset = new int[maxRecords];
+		headerLength = new int[maxRecords];
+		order = new long[maxRecords];
+		sorted = new int[maxRecords];
+	}
+
+	/**
+	 * Add a record to the batch.  A record that is bigger than the whole slab is
+	 * still accepted by an empty batch: we just grow the slab.
+	 *
+	 * @return false if there isn't room for this record
+	 */
+	boolean add(byte[] header, int headerCount, byte[] seq, int seqCount) {
+		if (count == maxRecords)
+			return false;
+		if (residueUsed + seqCount > residues.capacity()) {
+			if (count > 0) return false;
+			residues = ByteBuffer.allocateDirect(seqCount);
+		}
+
+		if (headerUsed + headerCount > headers.length)
+			headers = Arrays.copyOf(headers, Math.max(headers.length*2, headerUsed+headerCount));
+		System.arraycopy(header, 0, headers, headerUsed, headerCount);
+		headerOffset[count] = headerUsed;
+		headerLength[count] = headerCount;
+		headerUsed += headerCount;
+
+		residues.position(residueUsed);
+		residues.put(seq, 0, seqCount);
+		residueOffset[count] = residueUsed;
+		residueLength[count] = seqCount;
+		residueUsed += seqCount;
+
+		count++;
+		return true;
+	}
+
+	/**
+	 * Empty the batch so it can be refilled.  The slabs are kept.
+	 */
+	void clear() {
+		count = 0;
+		residueUsed = 0;
+		headerUsed = 0;
+		pending.set(0);
+	}
+
+	public int size() { return count; }
+
+	public long getResidueCount() { return residueUsed; }
+
+	/**
+	 * Return the residue slab.  Use {@link #getOffset(int)} and {@link #getLength(int)}
+	 * to find a record in it, and only use absolute gets: the slab is shared.
+	 *
+	 * @return the residue slab
+	 */
+	public ByteBuffer getResidues() { return residues; }
+
+	public int getOffset(int record) { return residueOffset[record]; }
+
+	public int getLength(int record) { return residueLength[record]; }
+
+	/**
+	 * Decode the full header line for a record.  Older copies of our databases had
+	 * the spaces in the header replaced with "$$$$" to get around the BioJava parser,
+	 * so we put those back.
+	 *
+	 * @param record the record number
+	 * @return the sequence name, including the description
+	 */
+	public String getName(int record) {
+		String name = null;
+		try {
+			name = new String(headers, headerOffset[record], headerLength[record], "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			name = new String(headers, headerOffset[record], headerLength[record]);
+		}
+		return name.replace("$$$$", " ");
+	}
+
+	public String seqString(int record) {
+		char[] chars = new char[residueLength[record]];
+		int offset = residueOffset[record];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char)(residues.get(offset+i) & 0xff);
+		return new String(chars);
+	}
+
+	/**
+	 * Return the record numbers ordered from the longest sequence to the shortest.
+	 * The array is reused, so only the first {@link #size()} entries are valid.
+	 *
+	 * @return the record numbers, longest first
+	 */
+	public int[] byLength() {
+		for (int record = 0; record < count; record++)
+			order[record] = ((long)residueLength[record] << 32) | record;
+		Arrays.sort(order, 0, count);
+
+		for (int i = 0; i < count; i++)
+			sorted[i] = (int)order[count-1-i];
+		return sorted;
+	}
+
+	/**
+	 * Note that <i>units</i> more units of work are scanning this batch.
+	 */
+	void retain(int units) {
+		pending.addAndGet(units);
+	}
+
+	/**
+	 * Called when a unit of work is done with this batch.  When the last one
+	 * finishes, the batch goes back to its pool.
+	 */
+	void release() {
+		if (pending.decrementAndGet() == 0 && pool != null)
+			pool.release(this);
+	}
+
+	void setPool(RecordBatchPool pool) { this.pool = pool; }
+}
@@ -0,0 +1,45 @@
+/**
+ * A fixed set of {@link RecordBatch} slabs shared by the database reader and the
+ * search workers.  The reader blocks in {@link #acquire()} when all of the batches
+ * are being scanned, which keeps it from running ahead of the workers.
+ */
+
+package dasp.algorithms;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class RecordBatchPool {
+	private BlockingQueue<RecordBatch> free = null;
+
+	/**
+	 * Create the pool.
+	 *
+	 * @param batches the number of batches in the pool
+	 * @param residueCapacity the number of residues in each batch
+	 * @param maxRecords the maximum number of records in each batch
+	 */
+	public RecordBatchPool(int batches, int residueCapacity, int maxRecords) {
+		free = new ArrayBlockingQueue<RecordBatch>(batches);
+		for (int i = 0; i < batches; i++) {
+			RecordBatch batch = new RecordBatch(residueCapacity, maxRecords);
+			batch.setPool(this);
+			free.add(batch);
+		}
+	}
+
+	/**
+	 * Get an empty batch, waiting for one to be released if necessary.
+	 *
+	 * @return an empty batch
+	 */
+	public RecordBatch acquire() throws InterruptedException {
+		RecordBatch batch = free.take();
+		batch.clear();
+		return batch;
+	}
+
+	void release(RecordBatch batch) {
+		free.offer(batch);
+	}
+}
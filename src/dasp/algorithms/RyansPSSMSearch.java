@@ -12,21 +12,44 @@ import dasp.model.PSSM;
 import dasp.model.SearchResult;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class RyansPSSMSearch implements PSSMSearch {
 	private boolean includeX = false;
+	private int windowLength = 4096;
+
+	// The PSSM row for each EncodedSequence code (-1 for X's we skip)
+	private int[] rowOf = new int[EncodedSequence.ALPHABET.length()];
 
 	public RyansPSSMSearch (boolean includeX) {
 		this.includeX = includeX;
+		for (int code = 0; code < rowOf.length; code++) {
+			if (includeX || code < EncodedSequence.X)
+				rowOf[code] = code;
+			else if (code == EncodedSequence.X)
+				rowOf[code] = -1;
+			else
+				rowOf[code] = code-1;
+		}
 	}
 
-	//match the PSSMs to a database sequence
-	//Note PSSM list should already be in sequential order from largest PSSM to smallest
-	public SearchResult[] search(List<PSSM> list, String seq, int xCount, boolean debug){
+	/**
+	 * Match the PSSMs to a database sequence that has already been encoded.  The
+	 * PSSM list should already be in sequential order from largest PSSM to smallest.
+	 *
+	 * @param list the PSSMs
+	 * @param seq the encoded sequence, with its X count and composition
+	 * @param debug print out debugging information
+	 * @return the matches for each PSSM, or null if one of them didn't match
+	 */
+	public SearchResult[] search(List<PSSM> list, EncodedSequence seq, boolean debug){
 		SearchResult[] pvalues = new SearchResult[list.size()];
 
-		char[] seqArray = seq.toCharArray();
-		double aaIncrement = 1.0/(double)(seqArray.length-xCount);
+		byte[] seqArray = seq.getCodes();
+		int seqLength = seq.length();
+		int xCount = seq.getXCount();
+		double aaIncrement = 1.0/(double)(seqLength-xCount);
 
 		double[] seqFreqs;
 		if (includeX)
@@ -34,11 +57,12 @@ public class RyansPSSMSearch implements PSSMSearch {
 		else
 			seqFreqs = new double[20];
 
-		//count the number of occurences of each residue in the sequence
-		for(int position = 0; position < seq.length(); position++){
-			int aa = list.get(0).getAANum(seqArray[position]);
+		//the frequency of each residue in the sequence
+		int[] counts = seq.getCounts();
+		for(int code = 0; code < counts.length; code++){
+			int aa = rowOf[code];
 			if (aa == -1) continue;
-			seqFreqs[aa] += aaIncrement;
+			seqFreqs[aa] = counts[code]*aaIncrement;
 		}
 
 		int pssmNumber = 0;
@@ -46,33 +70,17 @@ public class RyansPSSMSearch implements PSSMSearch {
 		for (PSSM pssm: list) {
 			double[][] matrix = pssm.getPSSM();
 
-			double max = -1*Double.MAX_VALUE;
-			int max_index = -1;
 			//find the position where the current PSSM matches the sequence
-			for(int position = 0; position < seqArray.length - matrix[0].length + 1; position++) {
-				double score = -1*Double.MAX_VALUE;
-				boolean badRes = false;
-				for(int pssmColumn = 0; pssmColumn < matrix[0].length; pssmColumn++){
-					if (includeX || !(seqArray[position+pssmColumn] == 'X')) {
-						int index = pssm.getAANum(seqArray[position+pssmColumn]); 
-						if(pssmColumn == 0)
-							score = matrix[index][pssmColumn];
-						else
-							score += matrix[index][pssmColumn];
-					} else {
-						badRes = true;
-						if (debug)
-							System.out.println("Found bad residue at: "+(position+pssmColumn));
-					}
-				}
-
-				if((score > max) && notTaken(pvalues, position, pssm, list) && !badRes){
-					if (debug)
-						System.out.println("Found match at "+position+" score = "+score);
-					max_index = position;
-					max = score;
-				}
+			int positions = seqLength - matrix[0].length + 1;
+			Match best;
+			if (windowLength > 0 && positions > windowLength && ForkJoinTask.inForkJoinPool()) {
+				// Long sequence: scan overlapping windows in parallel and merge
+				best = new WindowScan(seqArray, pssm, list, pvalues, 0, positions, debug).invoke();
+			} else {
+				best = scan(seqArray, pssm, list, pvalues, 0, positions, debug);
 			}
+			double max = best.score;
+			int max_index = best.index;
 
 			//if we matched the PSSM to a valid position...
 			if(max_index != -1){
@@ -85,7 +93,7 @@ public class RyansPSSMSearch implements PSSMSearch {
 				BigDecimal minusOnePvalue = BigDecimal.ONE.subtract(bigPvalue, MathContext.DECIMAL128);
 				BigDecimal bigPpvalue = 
 					BigDecimal.ONE.subtract(
-							minusOnePvalue.pow(seqArray.length 
+							minusOnePvalue.pow(seqLength 
 					                       - xCount 
 					                       - matrix[0].length + 1, 
 					                       MathContext.DECIMAL128), 
@@ -94,8 +102,8 @@ public class RyansPSSMSearch implements PSSMSearch {
 				if (debug) {
 					System.out.println("Normalized pvalue for match at "+max_index+" is = "+ppvalue);
 					if (ppvalue == 0.0) {
-						System.out.println("Normalization power: "+(seqArray.length - xCount - matrix[0].length + 1));
-						System.out.println("Normalization result: "+Math.pow(1.0-pvalue, (double)(seqArray.length - xCount - matrix[0].length + 1)));
+						System.out.println("Normalization power: "+(seqLength - xCount - matrix[0].length + 1));
+						System.out.println("Normalization result: "+Math.pow(1.0-pvalue, (double)(seqLength - xCount - matrix[0].length + 1)));
 					}
 				}
 
@@ -119,6 +127,124 @@ public class RyansPSSMSearch implements PSSMSearch {
 	}
 
 
+	/**
+	 * Find the best scoring match of a PSSM that starts in the range [from, to) of the
+	 * sequence.  The PSSM may extend past <i>to</i>, so windows of the same sequence overlap
+	 * by the width of the PSSM.  If more than one position has the best score, the first
+	 * one wins.
+	 *
+	 * @param seqArray the sequence
+	 * @param pssm the PSSM we're matching
+	 * @param list the full list of PSSMs
+	 * @param pvalues the matches for the PSSMs we've already placed
+	 * @param from the first start position to try
+	 * @param to one past the last start position to try
+	 * @return the best match, which will have an index of -1 if nothing matched
+	 */
+	private Match scan(byte[] seqArray, PSSM pssm, List<PSSM> list, SearchResult[] pvalues,
+	                   int from, int to, boolean debug) {
+		double[][] matrix = pssm.getPSSM();
+		double max = -1*Double.MAX_VALUE;
+		int max_index = -1;
+		for(int position = from; position < to; position++) {
+			double score = -1*Double.MAX_VALUE;
+			boolean badRes = false;
+			for(int pssmColumn = 0; pssmColumn < matrix[0].length; pssmColumn++){
+				int index = rowOf[seqArray[position+pssmColumn]];
+				if (index != -1) {
+					if(pssmColumn == 0)
+						score = matrix[index][pssmColumn];
+					else
+						score += matrix[index][pssmColumn];
+				} else {
+					badRes = true;
+					if (debug)
+						System.out.println("Found bad residue at: "+(position+pssmColumn));
+				}
+			}
+
+			if((score > max) && notTaken(pvalues, position, pssm, list) && !badRes){
+				if (debug)
+					System.out.println("Found match at "+position+" score = "+score);
+				max_index = position;
+				max = score;
+			}
+		}
+		return new Match(max_index, max);
+	}
+
+	/**
+	 * Set the number of start positions that will be scanned as one piece.  Sequences
+	 * with more start positions than this are split into windows that are scanned in
+	 * parallel, as long as we're running inside of a ForkJoinPool.
+	 *
+	 * @param windowLength the window length, or 0 to never split sequences
+	 */
+	public void setWindowLength(int windowLength) { this.windowLength = windowLength; }
+
+	public int getWindowLength() { return windowLength; }
+
+	/**
+	 * The best position (and its score) for a PSSM in a sequence.
+	 */
+	static class Match {
+		final int index;
+		final double score;
+
+		Match(int index, double score) {
+			this.index = index;
+			this.score = score;
+		}
+
+		/**
+		 * Merge the matches from two windows.  The windows are expected to be in
+		 * sequence order, so on a tie, the earlier window wins, just as it would
+		 * in a single scan.
+		 */
+		Match merge(Match later) {
+			if (later.index != -1 && (index == -1 || later.score > score))
+				return later;
+			return this;
+		}
+	}
+
+	/**
+	 * Scans a range of start positions, splitting it in half until it fits in a window.
+	 */
+	class WindowScan extends RecursiveTask<Match> {
+		private static final long serialVersionUID = 1L;
+
+		final byte[] seqArray;
+		final PSSM pssm;
+		final List<PSSM> list;
+		final SearchResult[] pvalues;
+		final int from;
+		final int to;
+		final boolean debug;
+
+		WindowScan(byte[] seqArray, PSSM pssm, List<PSSM> list, SearchResult[] pvalues,
+		           int from, int to, boolean debug) {
+			this.seqArray = seqArray;
+			this.pssm = pssm;
+			this.list = list;
+			this.pvalues = pvalues;
+			this.from = from;
+			this.to = to;
+			this.debug = debug;
+		}
+
+		protected Match compute() {
+			if (to - from <= windowLength)
+				return scan(seqArray, pssm, list, pvalues, from, to, debug);
+
+			int middle = (from + to) >>> 1;
+			WindowScan right = new WindowScan(seqArray, pssm, list, pvalues, middle, to, debug);
+			right.fork();
+			Match left = new WindowScan(seqArray, pssm, list, pvalues, from, middle, debug).compute();
+			return left.merge(right.join());
+		}
+	}
+
 	/**
 	 * Returns whether or not a PSSM has already matched at a position.
 	 * I don't think this algorithm is correct, but I am leaving it as is so it
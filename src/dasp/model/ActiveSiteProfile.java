@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.LinkedList;
 
 import dasp.algorithms.Align;
+import dasp.algorithms.ProgressiveAlign;
 
 /**
  * An ActiveSiteProfile is an alignment that is formed by aligning
@@ -79,7 +80,7 @@ public class ActiveSiteProfile extends Alignment {
 			String[] splitStr = seq.split("\t");
 			String pdbId = splitStr[0].trim();
 			addSequence(pdbId+"\t"+alignment.get(strIndex));
-			alignmentMap.put(pdbId, alignment.get(strIndex));
+			putAlignment(pdbId, alignment.get(strIndex));
 			// NOTE: not updating name map at this point
 		}
 		method = template.method;
@@ -106,9 +107,9 @@ public class ActiveSiteProfile extends Alignment {
 		for (ActiveSiteSignature sig: signatureList) {
 			if (sig.getFragments().size() > 1) break;
 
-			String alignment = alignmentMap.get(sig.getPdbId());
+			String alignment = getAlignmentByName(sig.getPdbId());
 			String newAlignment = sig.extendAlignment(alignment);
-			alignmentMap.put(sig.getPdbId(), newAlignment);
+			putAlignment(sig.getPdbId(), newAlignment);
 		}
 		// System.out.println(getAlignmentAsString());
 	}
@@ -142,13 +143,42 @@ public class ActiveSiteProfile extends Alignment {
 		}
 	}
 
+	/**
+	 * Add a signature to the profile without realigning the rest of it.  Each
+	 * fragment of the signature is aligned against the block of the profile it fits
+	 * best, so the rows that are already there only pick up gaps.
+	 *
+	 * @param sig the signature to add
+	 * @param radius the profile radius
+	 */
+	public void addSignature(ActiveSiteSignature sig, double radius) {
+		String name = sig.getPdbId();
+		if (alignmentRows.indexOf(name) >= 0)
+			throw new IllegalArgumentException(name+" is already in the profile");
+		String signature = sig.getSignature(radius);
+
+		// The fragments of the signature alternate in case
+		List<String> fragments = new ArrayList<String>();
+		int start = 0;
+		for (int i = 1; i <= signature.length(); i++) {
+			if (i == signature.length() ||
+			    Character.isUpperCase(signature.charAt(i)) != Character.isUpperCase(signature.charAt(start))) {
+				fragments.add(signature.substring(start, i));
+				start = i;
+			}
+		}
+
+		alignmentRows = new ProgressiveAlign().addFragments(alignmentRows, name, fragments);
+		addSequence(name+"\t"+signature);
+	}
+
 	/**
 	 * Identifies the motifs (profile fragments) of the ASP
 	 *
 	 * Take the active site profile that has sequence fragments identified and find the profile 
 	 * fragments or motifs within the alignment.
 	 * Steps:
-	 * 1) We start with the fragment formatted alignment stored in 'alignmentMap'
+	 * 1) We start with the fragment formatted alignment stored in 'alignmentRows'
 	 * 2) We need to apply Ryan's algorithm for finding motifs to the list of aligned strings.
 	 * 3) once a motif is identified we need to put that in a new Alignment object.
 	 * 4) each fragment needs to then be realigned.
@@ -156,7 +186,7 @@ public class ActiveSiteProfile extends Alignment {
 	 * See Amy's powerpoint on the motif identification algorithm for a chart of how this works in general.
 	 *
 	 * Currently this code has basically been pasted into here with the initial
-	 * section modified to get it to work with the current alignmentMap structure set up.
+	 * section modified to get it to work with the current alignmentRows structure set up.
 	 * TO-DO: Need to get it to return a List of alignments for use in the PSSM searching.
 	 *
 	 * @return a list of Alignment objects where each contains the fragments in the motif.
@@ -165,27 +195,34 @@ public class ActiveSiteProfile extends Alignment {
 	public List<Alignment> findProfileFragments(boolean stripAlign) {
 
 		List<Alignment>FragList = null;
-		int numPDBs = seqs.size();
+		int numPDBs = alignmentRows.size();
 
 		List<Alignment> list = new ArrayList(); // this is a list of arrays that hold each fragment of the profile.
 
 		//Since the rest of the code is based off the Linked List and String array structures
-		//for simplicity sake I will just convert the 'alignmentMap' into those structures.
-		//we can change it later into something better when we have time.
+		//for simplicity sake I will just convert the aligned rows into those structures.
 
 		String sequences[] = new String[numPDBs];
 		List<String> names = new ArrayList();
 
-		int m = 0;
-		for(String key: alignmentMap.keySet()){
-			if(key.equals(Align.CONSERVATION))
-				continue;
-			names.add(key);
-			sequences[m] = alignmentMap.get(key);
-			m++;
+		for (int m = 0; m < numPDBs; m++) {
+			names.add(alignmentRows.getName(m));
+			sequences[m] = alignmentRows.getRowString(m);
 		}
 
 		int end = sequences[0].length();  //the length of the alignment?
+
+		// Find the fragments in each row up front, so that how much of a fragment there
+		// is from any column on, and where that fragment ends, are just lookups
+		int[][] runEnd = new int[numPDBs][];
+		int[][] runLength = new int[numPDBs][];
+		for (int row = 0; row < numPDBs; row++) {
+			byte[] aligned = alignmentRows.getRow(row);
+			runEnd[row] = new int[aligned.length];
+			runLength[row] = new int[aligned.length];
+			findRuns(aligned, runEnd[row], runLength[row]);
+		}
+
 		int column = 0;
 
 		// for each column {
@@ -197,12 +234,12 @@ public class ActiveSiteProfile extends Alignment {
 
 		//loops through each column i of the alignment
 		while(column < end){
-			Alignment alignment = new ProfileFragment(method.NewAlignFactory());
+			ProfileFragment alignment = new ProfileFragment(method.NewAlignFactory());
 			int minBox = end;
 			int minIndex = -1; //this is the row/sequence with the current minimum length fragment starting at position i
 			//loops through each sequence in the alignemnt (each row k)
 			for(int row = 0; row < sequences.length; row++){
-				int fragmentLength = pieceOfFrag(sequences[row], column); //temp must be the length of the fragment.
+				int fragmentLength = runLength[row][column]; //temp must be the length of the fragment.
 				if(fragmentLength >= 4){
 					if(fragmentLength < minBox){
 						minIndex = row;
@@ -212,7 +249,7 @@ public class ActiveSiteProfile extends Alignment {
 			}
 			//if there is a valid fragment for at least one of the signatures then do this procedure.
 			if(minIndex != -1) {
-				int boxEnd = getEnd(sequences[minIndex], column);  //is this index position of the motif bounds?
+				int boxEnd = runEnd[minIndex][column];  //is this index position of the motif bounds?
 				int counter = 1;
 				//loops through each sequence again for position i
 				for(int row = 0; row < sequences.length; row++) {
@@ -222,9 +259,9 @@ public class ActiveSiteProfile extends Alignment {
 						//this right here is why the end fragment is used instead of the longest on within the bounds.
 						//
 						while(tempBound == -1 && boxColumn <= boxEnd) {
-							tempBound = pieceOfFrag(sequences[row], boxColumn);
+							tempBound = runLength[row][boxColumn];
 							if(tempBound >= 3) {
-								tempBound = getEnd(sequences[row], boxColumn);
+								tempBound = runEnd[row][boxColumn];
 	
 								//HAHAHA!  This is the problem right here!  So say the bounding box
 								//is only 3 long with positions 1, 2 and 3.  Say with sequence k at position 1
@@ -248,7 +285,12 @@ public class ActiveSiteProfile extends Alignment {
 						}
 						if(tempBound != -1) {//if tempBound is not -1 then we are adding it to the motif
 							counter++;
-							alignment.addSequence(names.get(row), unAlignString(sequences[row], boxColumn-1, tempBound, stripAlign));
+							String piece = unAlignString(sequences[row], boxColumn-1, tempBound, stripAlign);
+							if (!stripAlign) {
+								// Keep the rows of an aligned motif lined up with the box
+								piece = gaps(boxColumn-1-column)+piece+gaps(boxEnd-tempBound);
+							}
+							alignment.addSequence(names.get(row), piece);
 						}
 						//
 					} else {
@@ -279,70 +321,44 @@ public class ActiveSiteProfile extends Alignment {
 		//The extractResidues() method is pasted below and commented out for reference.
 	}
 
-	//check if a piece of a fragment exists at the current position in the profile
-	private int pieceOfFrag(String s, int index){
-		boolean u = Character.isUpperCase(s.charAt(index));
-		int gapCounter = 0;
-		int curPos = index + 1;
-		int length = 1;
-		if(!Character.isLetter(s.charAt(index)))
-			return 0;
-		if(u){
-			while(curPos < s.length() && (!Character.isLetter(s.charAt(curPos)) ||
-							Character.isUpperCase(s.charAt(curPos)))){
-				if(!Character.isLetter(s.charAt(curPos)))
-					gapCounter++;
-				else{
-					gapCounter = 0;
-					length++;
-				}
-				curPos++;
+	/**
+	 * Find the fragments in a row of the profile in one pass from the end.  A fragment
+	 * is a run of residues of the same case (gaps don't break it up); for each residue
+	 * we record the last residue of its fragment and how many residues there are from
+	 * it to the end of the fragment.  Gaps get a count of 0.
+	 *
+	 * @param row the aligned row
+	 * @param runEnd where the fragment of each residue ends
+	 * @param count the number of residues from each residue to the end of its fragment
+	 */
+	private static void findRuns(byte[] row, int[] runEnd, int[] count) {
+		int end = -1;
+		int residues = 0;
+		boolean upper = false;
+		for (int column = row.length-1; column >= 0; column--) {
+			int c = row[column];
+			boolean isUpper = c >= 'A' && c <= 'Z';
+			if (!isUpper && !(c >= 'a' && c <= 'z')) {
+				runEnd[column] = -1;
+				count[column] = 0;
+				continue;
 			}
-		}
-		else{
-			while(curPos < s.length() && (!Character.isLetter(s.charAt(curPos)) ||
-							Character.isLowerCase(s.charAt(curPos)))){
-				if(!Character.isLetter(s.charAt(curPos)))
-					gapCounter++;
-				else{
-					gapCounter = 0;
-					length++;
-				}
-				curPos++;
+			if (end < 0 || isUpper != upper) {
+				end = column;
+				residues = 0;
+				upper = isUpper;
 			}
+			residues++;
+			runEnd[column] = end;
+			count[column] = residues;
 		}
-		return length;
 	}
 
-	//check where the current fragment ends in the profile
-	private int getEnd(String s, int index){
-		boolean u = Character.isUpperCase(s.charAt(index));
-		int gapCounter = 0;
-		int curPos = index + 1;
-		if(u){
-			while(curPos < s.length() && (!Character.isLetter(s.charAt(curPos)) ||
-							Character.isUpperCase(s.charAt(curPos)))){
-				if(!Character.isLetter(s.charAt(curPos)))
-					gapCounter++;
-				else
-					gapCounter = 0;
-				curPos++;
-			}
-		}
-		else{
-			while(curPos < s.length() && (!Character.isLetter(s.charAt(curPos)) ||
-							Character.isLowerCase(s.charAt(curPos)))){
-				if(!Character.isLetter(s.charAt(curPos)))
-					gapCounter++;
-				else
-					gapCounter = 0;
-				curPos++;
-			}
-		}
-		if(gapCounter == 0)
-			return (curPos - 1);
-		else
-			return (curPos - 1 - gapCounter);
+	private String gaps(int count) {
+		StringBuilder gaps = new StringBuilder(count);
+		for (int i = 0; i < count; i++)
+			gaps.append('-');
+		return gaps.toString();
 	}
 
 	private String unAlignString (String alignedString, int start, int end, boolean stripAlign) {
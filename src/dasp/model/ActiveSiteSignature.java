@@ -34,6 +34,9 @@ import java.io.File;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +55,7 @@ public class ActiveSiteSignature {
 	private Map<Integer, ActiveSiteSignature> fragSigCache = null;
 	private String signature = null;
 	private double radius = 10.0;
+	private boolean singleFragment = false; // built from one fragment of another signature
 
 	public ActiveSiteSignature (String inputString, File database) throws IOException {
 		// Parse input string
@@ -69,10 +73,11 @@ public class ActiveSiteSignature {
 		fragments = new ArrayList<SequenceFragment>();
 		fragments.add(frag);
 		signature = frag.getSequence(false);
+		singleFragment = true;
 	}
 
 	public String getSignature(double profileRadius) {
-		if (signature != null && keyResidues == null)
+		if (signature != null && (keyResidues == null || singleFragment))
 			return signature;
 
 		if (signature == null || radius != profileRadius) {
@@ -89,6 +94,79 @@ public class ActiveSiteSignature {
 		return signature;
 	}
 
+	/**
+	 * Calculate the signatures for a whole list of radii at once.  The distance
+	 * between each residue near the site and each key residue is only measured
+	 * once (out to the largest radius).  Then, going through the residues from
+	 * the closest to the farthest, the fragments for each radius are read off
+	 * those distances.
+	 *
+	 * @param radii the profile radii
+	 * @return a signature for each radius, in the same order as the radii
+	 */
+	public List<ActiveSiteSignature> sweep(double[] radii) {
+		double maxRadius = 0.0;
+		for (double r: radii)
+			maxRadius = Math.max(maxRadius, r);
+
+		// Measure the distances from each key residue to the residues near it
+		List<Residue> residues = struct.getResidues();
+		int[] found = new int[residues.size()];
+		double[] distance = new double[residues.size()];
+		double[][] keyDistance = new double[residues.size()][];
+		final double[] minDistance = new double[residues.size()];
+		List<Integer> near = new ArrayList<Integer>();
+		for (int key = 0; key < keyResidues.size(); key++) {
+			int count = findNear(keyResidues.get(key), maxRadius, found, distance);
+			for (int i = 0; i < count; i++) {
+				int res = found[i];
+				if (keyDistance[res] == null) {
+					keyDistance[res] = new double[keyResidues.size()];
+					Arrays.fill(keyDistance[res], Double.POSITIVE_INFINITY);
+					minDistance[res] = Double.POSITIVE_INFINITY;
+					near.add(res);
+				}
+				keyDistance[res][key] = distance[i];
+				minDistance[res] = Math.min(minDistance[res], keyDistance[res][key]);
+			}
+		}
+
+		// Closest residues first
+		Collections.sort(near, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(minDistance[a], minDistance[b]);
+			}
+		});
+
+		List<ActiveSiteSignature> sigs = new ArrayList<ActiveSiteSignature>();
+		for (double r: radii) {
+			// The residues within this radius are the ones at the front of the list
+			int count = 0;
+			while (count < near.size() && minDistance[near.get(count)] <= r)
+				count++;
+			int[] members = new int[count];
+			for (int i = 0; i < count; i++)
+				members[i] = near.get(i);
+			Arrays.sort(members);
+
+			// Use the first key residue (in input order) that's within the radius
+			int[] keys = new int[count];
+			for (int i = 0; i < count; i++) {
+				double[] distances = keyDistance[members[i]];
+				int key = 0;
+				while (!(distances[key] <= r)) key++;
+				keys[i] = key;
+			}
+
+			ActiveSiteSignature sig = new ActiveSiteSignature(struct, keyResidues);
+			sig.radius = r;
+			sig.fragments = sig.buildFragments(members, keys, count);
+			sig.signature = alternate(sig.fragments);
+			sigs.add(sig);
+		}
+		return sigs;
+	}
+
 	public String getPdbId(){
 		return struct.getPdbId();
 	}
@@ -152,15 +230,15 @@ public class ActiveSiteSignature {
 
 	private String alternate(List<SequenceFragment>frags) {
 		boolean toUpper = true;
-		String result = "";
+		StringBuilder result = new StringBuilder();
 		for (SequenceFragment frag: frags) {
-			result += frag.getSequence(toUpper);
+			result.append(frag.getSequence(toUpper));
 			if (toUpper) 
 				toUpper = false;
 			else
 				toUpper = true;
 		}
-		return result;
+		return result.toString();
 	}
 
 	/**
@@ -178,21 +256,14 @@ public class ActiveSiteSignature {
 	 * @throws IOException if we get a read error
 	 */
 	private void parseInput(String input, File database) throws IOException {
-		String pdbFile = null;
-		String chain = null;
-        
 		String[] tokens = input.trim().split(":");
 
 		if (tokens.length < 2)
 			throw new IOException("No ':' in input string: "+input);
 
-		int chainStart = tokens[0].indexOf('#');
-		if (chainStart > 0) {
-			chain = tokens[0].substring(chainStart+1);
-			pdbFile = tokens[0].substring(0,chainStart);
-		} else {
-			pdbFile = tokens[0];
-		}
+		String[] structure = parseStructure(input);
+		String pdbFile = structure[0];
+		String chain = structure[1];
 
 		if (tokens.length == 2) {
 			String[] residues = tokens[1].split(",");
@@ -221,6 +292,24 @@ public class ActiveSiteSignature {
 		}
 	}
 
+	/**
+	 * Pull the structure and chain out of an input line.
+	 *
+	 * @param input the input string
+	 * @return the structure identifier and the chain (or null), or null if there's
+	 * no ':' in the input
+	 */
+	static String[] parseStructure(String input) {
+		String[] tokens = input.trim().split(":");
+		if (tokens.length < 2)
+			return null;
+
+		int chainStart = tokens[0].indexOf('#');
+		if (chainStart > 0)
+			return new String[] {tokens[0].substring(0,chainStart), tokens[0].substring(chainStart+1)};
+		return new String[] {tokens[0], null};
+	}
+
 	/**
    * Extracts the fragments that are part of the active site signature
    * 
@@ -228,49 +317,102 @@ public class ActiveSiteSignature {
    * @return  Returns the list of fragments that are within the defined radius of at least 1 key residue.
    */
 	private List<SequenceFragment> calculateASSig(double radius) {
+		// Find the residues near each key residue, remembering the first key (in
+		// input order) that each residue is near
+		List<Residue> residues = struct.getResidues();
+		int[] found = new int[residues.size()];
+		int[] nearKey = new int[residues.size()];
+		int[] hits = new int[residues.size()];
+		int hitCount = 0;
+		Arrays.fill(nearKey, -1);
+		for (int key = 0; key < keyResidues.size(); key++) {
+			int count = findNear(keyResidues.get(key), radius, found, null);
+			for (int i = 0; i < count; i++) {
+				if (nearKey[found[i]] < 0) {
+					nearKey[found[i]] = key;
+					hits[hitCount++] = found[i];
+				}
+			}
+		}
+		Arrays.sort(hits, 0, hitCount);
+
+		int[] keys = new int[hitCount];
+		for (int hit = 0; hit < hitCount; hit++)
+			keys[hit] = nearKey[hits[hit]];
+
+		return buildFragments(hits, keys, hitCount);
+	}
+
+	/**
+	 * Find the residues within a radius of a key residue.  We use the structure's
+	 * contact map if it reaches far enough, and its spatial index if it doesn't.
+	 *
+	 * @param keyRes the key residue
+	 * @param radius the search radius
+	 * @param found where to put the indices of the residues we find
+	 * @param distances if not null, where to put the distances to them
+	 * @return the number of residues found
+	 */
+	private int findNear(Residue keyRes, double radius, int[] found, double[] distances) {
+		ContactMap contacts = struct.getContacts();
+		if (contacts != null && radius <= contacts.getMaxRadius())
+			return contacts.findWithin(keyRes.getIndex(), radius, found, distances);
+
+		List<Residue> residues = struct.getResidues();
+		int count = struct.getGrid(radius).findWithin(keyRes.getCenter(), radius, found);
+		if (distances != null) {
+			for (int i = 0; i < count; i++)
+				distances[i] = keyRes.dist(residues.get(found[i]));
+		}
+		return count;
+	}
+
+	/**
+	 * Split the residues in the signature into fragments of consecutive residues.
+	 *
+	 * @param members the indices of the residues in the signature, in chain order
+	 * @param keys for each residue, the key residue it is near
+	 * @param count the number of residues in the signature
+	 * @return the fragments (at least 4 residues long), in chain order
+	 */
+	private List<SequenceFragment> buildFragments(int[] members, int[] keys, int count) {
 		List<SequenceFragment> returnFrags = new ArrayList<SequenceFragment>();
 		residueFrags = new ArrayList<SequenceFragment>();
 		otherFrags = new ArrayList<SequenceFragment>();
+		List<Residue> residues = struct.getResidues();
+
+		// Where each key residue first appears in the key list
+		Map<Residue, Integer> keyPosition = new HashMap<Residue, Integer>();
+		for (int key = keyResidues.size()-1; key >= 0; key--)
+			keyPosition.put(keyResidues.get(key), key);
 
 		//not sure this is the best way to start this off.
 		SequenceFragment tempFrag = new SequenceFragment();  //starts the first fragment object
 		int prevResId = 0;  //initializes the previous residue ID
 		boolean haveKey = false;
-		for (Residue curRes: struct.getResidues())
-		{ 
-			for (Residue keyRes: keyResidues)
+		for (int member = 0; member < count; member++)
+		{
+			Residue curRes = residues.get(members[member]);
+			Residue keyRes = keyResidues.get(keys[member]);
+
+			if(prevResId > 0 && curRes.getIndex() != prevResId+1)
 			{
-				// System.out.println("Comparing: "+curRes.getAA()+" to "+keyRes.getAA());
-				//get centers
-				//compare centers
-				double EDdist = keyRes.dist(curRes);
-				
-				//test for within radius
-				if(EDdist <= radius && EDdist >= -radius)
-				{
-						if(prevResId > 0 && curRes.getIndex() != prevResId+1)
-						{
-							if (tempFrag.getResidueCount() >= 4) {
-								returnFrags.add(tempFrag);
-								if (haveKey)
-									residueFrags.add(tempFrag);
-								else
-									otherFrags.add(tempFrag);
-							}
-							tempFrag = new SequenceFragment();
-							haveKey = false;
-						}
-
-						int keyIndex = keyResidues.indexOf(curRes);
-						tempFrag.addFragRes(curRes, keyRes, keyIndex); //if true, add residue to fragments list and break
-						if (keyIndex >= 0) haveKey = true;
-
-						prevResId = curRes.getIndex();
-						break;
-				} 
-				//if false move onto next keyRes
+				if (tempFrag.getResidueCount() >= 4) {
+					returnFrags.add(tempFrag);
+					if (haveKey)
+						residueFrags.add(tempFrag);
+					else
+						otherFrags.add(tempFrag);
+				}
+				tempFrag = new SequenceFragment();
+				haveKey = false;
 			}
 
+			Integer keyIndex = keyPosition.get(curRes);
+			tempFrag.addFragRes(curRes, keyRes, keyIndex == null ? -1 : keyIndex.intValue());
+			if (keyIndex != null) haveKey = true;
+
+			prevResId = curRes.getIndex();
 		}
 
 		if (tempFrag.getResidueCount() >= 4) {
@@ -301,7 +443,7 @@ public class ActiveSiteSignature {
 		if (fragments.size() > 1) return null;
 		// System.out.println("Extending "+alignmentString+" from "+struct.getPdbId());
 		SequenceFragment frag = fragments.get(0);
-		String newAlignment = "";
+		StringBuilder newAlignment = new StringBuilder(alignmentString.length());
 
 		int leadingDashes = countLeadingDashes(alignmentString);
 		if (leadingDashes == alignmentString.length())
@@ -316,30 +458,26 @@ public class ActiveSiteSignature {
 		int trailingIndex = trailingResidue.getIndex();
 		// System.out.println("leadingIndex = "+leadingIndex+" leading dashes = "+leadingDashes);
 		// System.out.println("trailingIndex = "+trailingIndex+" trailing dashes = "+trailingDashes);
-		for (int r = leadingIndex-leadingDashes; r<leadingIndex; r++) {
-			if (r >=0 && struct.getResidues().get(r) != null) {
-				newAlignment += struct.getResidues().get(r).getAA();
-			} else {
-				newAlignment += "-";
-			}
-		}
+		// Pad with dashes for anything that runs off the ends of the chain
+		String sequence = struct.getSequence();
+		int start = leadingIndex-leadingDashes;
+		for (int r = start; r < Math.min(0, leadingIndex); r++)
+			newAlignment.append('-');
+		if (leadingIndex > 0)
+			newAlignment.append(sequence, Math.max(start, 0), leadingIndex);
 
-		newAlignment += alignmentString.substring(leadingDashes, alignmentString.length()-trailingDashes);
+		newAlignment.append(alignmentString, leadingDashes, alignmentString.length()-trailingDashes);
 
 		if (trailingDashes > 0) {
 			int endIndex = trailingIndex+trailingDashes+1;
-			for (int r = trailingIndex+1; r < endIndex; r++) {
-				// System.out.println("Looking for residue "+r+": "+struct.getResidues().get(r).getAA());
-				// System.out.println("   Residue count = "+frag.getResidueCount());
-				if (r < struct.getResidues().size() && struct.getResidues().get(r) != null) {
-					// System.out.println("Appending....");
-					newAlignment += struct.getResidues().get(r).getAA();
-				} else
-					newAlignment += "-";
-			}
+			int available = Math.min(endIndex, sequence.length());
+			if (trailingIndex+1 < available)
+				newAlignment.append(sequence, trailingIndex+1, available);
+			for (int r = Math.max(trailingIndex+1, available); r < endIndex; r++)
+				newAlignment.append('-');
 		}
 		// System.out.println("New alignment = "+newAlignment);
-		return newAlignment;
+		return newAlignment.toString();
 	}
 
 	private int countLeadingDashes(String alignmentString) {
@@ -32,10 +32,9 @@ package dasp.model;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import dasp.algorithms.Align;
 
@@ -43,7 +42,7 @@ public class Alignment {
 	protected Align method = null;
 	protected List<String>seqs = null;
 	protected Map<String,String>nameMap = null;
-	protected Map<String,String>alignmentMap = null;
+	protected AlignmentRows alignmentRows = null;
 	private double percentIdentity = 0.0;
 	private double alignmentScore = 0.0;
 
@@ -53,14 +52,9 @@ public class Alignment {
 	private int gaps = 0;
 	private int length = 0;
 
-	private static String[] strongClass = {"STA", "NEQK", "NHQK", "NDEQ", "QHRK", 
-	                                       "MILV", "MILF", "HY", "FYW"};
-	private static String[] weakClass = {"CSA", "ATV", "SAG", "STNK", "STPA", "SGND", 
-	                                     "SNDEQK", "NDEQHK", "NEQHRK", "FVLIM", "HFY"};
-
 	public Alignment () {
 		seqs = new ArrayList();
-		this.alignmentMap = new HashMap();
+		this.alignmentRows = new AlignmentRows();
 		this.nameMap = new HashMap();
 	}
 
@@ -69,7 +63,7 @@ public class Alignment {
 		// for (String seq: seqs)
 		// 	System.out.println("     "+seq);
 		alignmentScore = method.align(seqs);
-		alignmentMap = method.getAlignment();
+		alignmentRows = method.getAlignmentRows();
 		percentIdentity = method.getIdentity();
 		// System.out.println("doAlign: alignment:");
 		// for (int i=0; i < seqs.size(); i++)
@@ -103,9 +97,28 @@ public class Alignment {
 	 * deleteSequence can be used to remove a sequence from the alignment.  Note that
 	 * the alignment is *not* recalculated when you remove a new sequence.
 	 *
-	 * @param seq the sequence to remove as a FASTA-formatted string
+	 * @param seq the sequence to remove ("name\tsequence"), or just its name
+	 */
+	public void deleteSequence(String seq) {
+		String name = seq.split("\t")[0].trim();
+		for (Iterator<String> iter = seqs.iterator(); iter.hasNext(); ) {
+			if (iter.next().split("\t")[0].trim().equals(name))
+				iter.remove();
+		}
+		nameMap.remove(name);
+		alignmentRows = alignmentRows.remove(name);
+	}
+
+	/**
+	 * Set the aligned row for a sequence, adding it to the end of the alignment if
+	 * it isn't there already.  This doesn't add the sequence itself (see addSequence).
+	 *
+	 * @param name the name of the sequence
+	 * @param alignedSeq the aligned row
 	 */
-	public void deleteSequence(String seq) { }
+	public void putAlignment(String name, String alignedSeq) {
+		alignmentRows = alignmentRows.put(name, alignedSeq);
+	}
 
 	/**
 	 * addSequences can be used to add a list of addtional sequences to the alignment.  Note that
@@ -134,7 +147,7 @@ public class Alignment {
 	public String getAlignmentString(int row) {
 		String inputSeq = seqs.get(row);
 		String[] splitStr = inputSeq.split("\t");
-		return alignmentMap.get(splitStr[0].trim());
+		return getAlignmentByName(splitStr[0].trim());
 	}
 
 	/**
@@ -164,15 +177,13 @@ public class Alignment {
  	 * @return the alignment
  	 */
 	public String getAlignmentAsString() { 
-		String result = "";
-		for (String key: alignmentMap.keySet()) {
-			if (key.equals(Align.CONSERVATION))
-				continue;
-			if (result.length() != 0)
-				result += "\n";
-			result += key+": "+alignmentMap.get(key);
+		StringBuilder result = new StringBuilder();
+		for (int row = 0; row < alignmentRows.size(); row++) {
+			if (row > 0)
+				result.append("\n");
+			result.append(alignmentRows.getName(row)+": "+alignmentRows.getRowString(row));
 		}
-		return result;
+		return result.toString();
 	}
 
 	/**
@@ -183,8 +194,8 @@ public class Alignment {
  	 */
 	public List<String> getAlignment() { 
 		List<String>alignment = new ArrayList();
-		for (String key: alignmentMap.keySet())
-			if (!key.equals(Align.CONSERVATION)) alignment.add(alignmentMap.get(key));
+		for (int row = 0; row < alignmentRows.size(); row++)
+			alignment.add(alignmentRows.getRowString(row));
 		return alignment;
 	}
 
@@ -196,18 +207,29 @@ public class Alignment {
  	 * @return the alignment string for name
  	 */
 	public String getAlignmentByName(String name) { 
-		if (alignmentMap.containsKey(name))
-			return alignmentMap.get(name); 
+		int row = alignmentRows.indexOf(name);
+		if (row >= 0)
+			return alignmentRows.getRowString(row);
 		return null;
 	}
 
 	/**
-	 * Return the entire alignment map, including the conservation line.
+	 * Return the entire alignment map, including the conservation line.  This is a
+	 * copy, so use putAlignment to change the alignment.
 	 *
-	 * @return the alignment map
+	 * @return the alignment map, in row order
 	 */
 	public Map<String,String> getAlignmentMap() {
-		return alignmentMap;
+		return alignmentRows.toMap();
+	}
+
+	/**
+	 * Return the aligned rows, in the order the sequences were added.
+	 *
+	 * @return the aligned rows
+	 */
+	public AlignmentRows getAlignmentRows() {
+		return alignmentRows;
 	}
 
 	/**
@@ -217,7 +239,7 @@ public class Alignment {
  	 * @return the HTML formatted alignment
  	 */
 	public String getHTMLAlignment() { 
-		if (alignmentMap != null)
+		if (alignmentRows.size() > 0)
 			return method.getHTMLAlignment(getAlignmentMap());
 		return null; 
 	}
@@ -228,14 +250,7 @@ public class Alignment {
 	 * @return the alignment width
 	 */
 	public int getAlignmentWidth() {
-		if (alignmentMap != null && alignmentMap.size() > 0) {
-			for (String key: alignmentMap.keySet()) {
-				if (!key.equals(Align.CONSERVATION)) {
-					return alignmentMap.get(key).length();
-				}
-			}
-		}
-		return -1;
+		return alignmentRows.getWidth();
 	}
 
 	/**
@@ -253,27 +268,12 @@ public class Alignment {
 		gaps = 0;
 		length = getAlignmentWidth();
 
-		for (int column=0; column < length; column++) {
-			Set<Character> residueColumn = new HashSet<Character>();
-			for (String sequenceKey: alignmentMap.keySet()) {
-				if (sequenceKey.equals(Align.CONSERVATION))
-					continue;
-				if (isEmpty(alignmentMap.get(sequenceKey))) {
-					gaps++;
-					continue;
-				}
-				residueColumn.add(alignmentMap.get(sequenceKey).toUpperCase().charAt(column));
-			}
-			if (residueColumn.contains(Character.valueOf('-'))) {
-				gaps++;
-			} else if (residueColumn.size() == 1) {
-				match++;
-			} else if (isInClass(residueColumn, strongClass)) {
-				strong++;
-			} else if (isInClass(residueColumn, weakClass)) {
-				weak++;
-			}
-		}
+		ColumnScorer scorer = new ColumnScorer();
+		scorer.score(ColumnScorer.encode(alignmentRows), length);
+		match = scorer.getMatch();
+		strong = scorer.getStrong();
+		weak = scorer.getWeak();
+		gaps = scorer.getGaps();
 
 		return calculateASPScore();
 	}
@@ -287,22 +287,6 @@ public class Alignment {
 		return alignmentScore;
 	}
 
-	private boolean isInClass(Set<Character> residueColumn, String[] residueClass) {
-		for (String residueGroup: residueClass) {
-			boolean isTrue = true;
-			for (Character c: residueColumn) {
-				if (residueGroup.indexOf(Character.toUpperCase(c.charValue())) < 0) {
-					isTrue = false;
-					break;
-				}
-			}
-			if (isTrue) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 	/**
  	 * This method updates a name map from a fasta sequence
  	 *
@@ -356,8 +340,4 @@ public class Alignment {
 	private String seq2FastA(String name, String rawSeq) {
 		return ("> "+name+"\n"+rawSeq);
 	}
-
-	private boolean isEmpty(String sequence) {
-		return sequence.matches("[-]+[^a-zA-Z]");
-	}
 }
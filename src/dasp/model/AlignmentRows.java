@@ -0,0 +1,164 @@
+/**
+ * AlignmentRows holds the rows of a multiple alignment in the order the sequences
+ * were given to the aligner: the names, each aligned row as bytes (residues keep
+ * their case, gaps are '-'), and the conservation line, if the aligner made one,
+ * kept apart from the rows.  AlignmentRows never changes once it's made (adding or
+ * removing a row makes a new one), so the same rows can be handed out to anyone
+ * who asks, as long as they don't write into the arrays.
+ */
+
+package dasp.model;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dasp.algorithms.Align;
+
+public class AlignmentRows {
+	private String[] names;
+	private byte[][] rows;
+	private String conservation;
+
+	/**
+	 * Create an alignment with no rows.
+	 */
+	public AlignmentRows() {
+		this(new String[0], new byte[0][], null);
+	}
+
+	/**
+	 * Create the rows of an alignment.
+	 *
+	 * @param names the name of each row
+	 * @param rows the aligned rows
+	 * @param conservation the conservation line, or null if there isn't one
+	 */
+	public AlignmentRows(String[] names, byte[][] rows, String conservation) {
+		this.names = names;
+		this.rows = rows;
+		this.conservation = conservation;
+	}
+
+	/**
+	 * Create the rows of an alignment from a map of aligned strings.
+	 *
+	 * @param order the names of the rows, in order
+	 * @param alignment the aligned rows by name (the conservation line, if there is one,
+	 * is under {@link Align#CONSERVATION})
+	 */
+	public AlignmentRows(List<String> order, Map<String, String> alignment) {
+		names = order.toArray(new String[order.size()]);
+		rows = new byte[names.length][];
+		for (int row = 0; row < names.length; row++)
+			rows[row] = getBytes(alignment.get(names[row]));
+		conservation = alignment.get(Align.CONSERVATION);
+	}
+
+	public int size() { return names.length; }
+
+	/**
+	 * Return the width of the alignment, or -1 if there are no rows.
+	 */
+	public int getWidth() {
+		if (rows.length == 0)
+			return -1;
+		return rows[0].length;
+	}
+
+	public String getName(int row) { return names[row]; }
+
+	/**
+	 * Return a row of the alignment.  This is the array we keep, so don't change it.
+	 */
+	public byte[] getRow(int row) { return rows[row]; }
+
+	public String getRowString(int row) {
+		byte[] bytes = rows[row];
+		char[] chars = new char[bytes.length];
+		for (int i = 0; i < bytes.length; i++)
+			chars[i] = (char)bytes[i];
+		return new String(chars);
+	}
+
+	public String getConservation() { return conservation; }
+
+	/**
+	 * Return the index of the named row, or -1 if it isn't there.
+	 */
+	public int indexOf(String name) {
+		for (int row = 0; row < names.length; row++) {
+			if (names[row].equals(name))
+				return row;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the rows with another row added at the end (or put in place of the
+	 * row with the same name).  A new row means any conservation line no longer
+	 * applies, so it's dropped.
+	 *
+	 * @param name the name of the row
+	 * @param row the aligned row
+	 * @return the new rows
+	 */
+	public AlignmentRows put(String name, String row) {
+		int index = indexOf(name);
+		if (index >= 0) {
+			byte[][] newRows = rows.clone();
+			newRows[index] = getBytes(row);
+			return new AlignmentRows(names, newRows, null);
+		}
+		String[] newNames = new String[names.length+1];
+		byte[][] newRows = new byte[rows.length+1][];
+		System.arraycopy(names, 0, newNames, 0, names.length);
+		System.arraycopy(rows, 0, newRows, 0, rows.length);
+		newNames[names.length] = name;
+		newRows[rows.length] = getBytes(row);
+		return new AlignmentRows(newNames, newRows, null);
+	}
+
+	/**
+	 * Return the rows without the named row.
+	 *
+	 * @param name the name of the row to leave out
+	 * @return the new rows (or these rows, if the name isn't here)
+	 */
+	public AlignmentRows remove(String name) {
+		int index = indexOf(name);
+		if (index < 0)
+			return this;
+		String[] newNames = new String[names.length-1];
+		byte[][] newRows = new byte[rows.length-1][];
+		for (int row = 0, newRow = 0; row < names.length; row++) {
+			if (row == index) continue;
+			newNames[newRow] = names[row];
+			newRows[newRow++] = rows[row];
+		}
+		return new AlignmentRows(newNames, newRows, null);
+	}
+
+	/**
+	 * Return the alignment as a map of aligned strings by name, in row order, with the
+	 * conservation line (if there is one) at the end.
+	 */
+	public Map<String, String> toMap() {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int row = 0; row < names.length; row++)
+			map.put(names[row], getRowString(row));
+		if (conservation != null)
+			map.put(Align.CONSERVATION, conservation);
+		return map;
+	}
+
+	/**
+	 * Return a string as the bytes of a row (alignments are plain ASCII).
+	 */
+	public static byte[] getBytes(String row) {
+		byte[] bytes = new byte[row.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte)row.charAt(i);
+		return bytes;
+	}
+}
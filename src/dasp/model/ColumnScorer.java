@@ -0,0 +1,186 @@
+/**
+ * ColumnScorer calculates the ASP score of an alignment (Cammer et al) directly
+ * from the aligned rows.  The rows are scored straight from their bytes (folding
+ * case with a table), and the strong and weak residue classes are kept as bitmasks
+ * with one bit per letter, so scoring a column is a few integer operations per
+ * residue.  This gives exactly the same counts as the original set based scoring
+ * in {@link Alignment}, including how it treats rows that are all gaps.  The
+ * classes are the ones ClustalW uses for its conservation line, and the built-in
+ * aligner uses them from here for the same thing.
+ */
+
+package dasp.model;
+
+public class ColumnScorer {
+	private static String[] strongClass = {"STA", "NEQK", "NHQK", "NDEQ", "QHRK",
+	                                       "MILV", "MILF", "HY", "FYW"};
+	private static String[] weakClass = {"CSA", "ATV", "SAG", "STNK", "STPA", "SGND",
+	                                     "SNDEQK", "NDEQHK", "NEQHRK", "FVLIM", "HFY"};
+
+	private static final int OTHER = 1 << 30; // anything that isn't a letter or a gap
+	private static final int[] bits = new int[256];
+	private static final int[] upper = new int[256];
+	private static final int[] strongMasks = classMasks(strongClass);
+	private static final int[] weakMasks = classMasks(weakClass);
+	static {
+		for (int c = 0; c < bits.length; c++)
+			bits[c] = OTHER;
+		for (int c = 'A'; c <= 'Z'; c++)
+			bits[c] = 1 << (c - 'A');
+		for (int c = 0; c < upper.length; c++)
+			upper[c] = (c >= 'a' && c <= 'z') ? c - 'a' + 'A' : c;
+		bits['-'] = 0;
+	}
+
+	private int match = 0;
+	private int strong = 0;
+	private int weak = 0;
+	private int gaps = 0;
+	private int length = 0;
+
+	public ColumnScorer() {
+	}
+
+	/**
+	 * Get the rows of an alignment ready for scoring.  This doesn't copy the rows;
+	 * rows that are nothing but gaps come back as null.
+	 *
+	 * @param rows the aligned rows
+	 * @return the rows to score
+	 */
+	public static byte[][] encode(AlignmentRows rows) {
+		byte[][] encoded = new byte[rows.size()][];
+		for (int row = 0; row < encoded.length; row++) {
+			if (!isEmpty(rows.getRow(row)))
+				encoded[row] = rows.getRow(row);
+		}
+		return encoded;
+	}
+
+	/**
+	 * Score an alignment.  Each empty (null) row counts as a gap in every column,
+	 * and a column with a gap in any other row is a gap column.  Otherwise a column
+	 * is a match if all of the residues are the same, and strong or weak if they all
+	 * fall into one of the strong or weak residue classes.
+	 *
+	 * @param rows the encoded rows (either case)
+	 * @param length the width of the alignment
+	 * @return the ASP score
+	 */
+	public double score(byte[][] rows, int length) {
+		match = 0;
+		strong = 0;
+		weak = 0;
+		gaps = 0;
+		this.length = length;
+
+		int emptyRows = 0;
+		for (byte[] row: rows) {
+			if (row == null) emptyRows++;
+		}
+
+		for (int column = 0; column < length; column++) {
+			gaps += emptyRows;
+			int mask = 0;
+			int first = -1;
+			boolean same = true;
+			boolean gap = false;
+			for (byte[] row: rows) {
+				if (row == null)
+					continue;
+				int c = upper[row[column] & 0xff];
+				if (c == '-') {
+					gap = true;
+					break;
+				}
+				mask |= bits[c];
+				if (first < 0)
+					first = c;
+				else if (c != first)
+					same = false;
+			}
+			if (gap) {
+				gaps++;
+			} else if (first >= 0 && same) {
+				match++;
+			} else if (inClass(mask, strongMasks)) {
+				strong++;
+			} else if (inClass(mask, weakMasks)) {
+				weak++;
+			}
+		}
+
+		double Si = 1.0;
+		double Ss = 0.2;
+		double Sw = 0.1;
+		double Sg = -0.5;
+		return (Si*match + Ss*strong + Sw*weak + Sg*gaps)/length;
+	}
+
+	public int getMatch() { return match; }
+	public int getStrong() { return strong; }
+	public int getWeak() { return weak; }
+	public int getGaps() { return gaps; }
+	public int getLength() { return length; }
+
+	/**
+	 * Is this row nothing but gaps?  This is the same test the alignment code has
+	 * always used: one or more dashes followed by a single character that isn't
+	 * a letter.
+	 */
+	public static boolean isEmpty(byte[] sequence) {
+		int last = sequence.length-1;
+		if (last < 1)
+			return false;
+		for (int i = 0; i < last; i++) {
+			if (sequence[i] != '-')
+				return false;
+		}
+		char c = (char)(sequence[last] & 0xff);
+		return !((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'));
+	}
+
+	// A column (with no gaps) is in a class if all of its residues are
+	/**
+	 * Return the bit for a residue (in either case) to OR into the mask of a column:
+	 * 0 for a gap, and a bit that isn't in any class for anything that isn't a letter.
+	 */
+	public static int residueBit(char c) {
+		if (c >= bits.length)
+			return OTHER;
+		return bits[upper[c]];
+	}
+
+	/**
+	 * Are all of the residues in a column (given as a mask of their bits) in one of
+	 * the strong classes?
+	 */
+	public static boolean inStrongClass(int mask) {
+		return inClass(mask, strongMasks);
+	}
+
+	/**
+	 * Are all of the residues in a column (given as a mask of their bits) in one of
+	 * the weak classes?
+	 */
+	public static boolean inWeakClass(int mask) {
+		return inClass(mask, weakMasks);
+	}
+
+	private static boolean inClass(int mask, int[] classMasks) {
+		for (int classMask: classMasks) {
+			if ((mask & ~classMask) == 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static int[] classMasks(String[] residueClass) {
+		int[] masks = new int[residueClass.length];
+		for (int i = 0; i < residueClass.length; i++) {
+			for (char c: residueClass[i].toCharArray())
+				masks[i] |= 1 << (c - 'A');
+		}
+		return masks;
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * ContactMap lists, for each residue in a chain, the residues whose centers are
+ * within a maximum radius of it, along with their distances.  The lists are kept
+ * end to end in one array (compressed sparse row style).  Once it is built, finding
+ * the residues near a key residue for any radius up to the maximum is just a walk
+ * down that residue's list, and since the map only depends on the chain it can be
+ * cached and reused for any set of key residues.
+ */
+
+package dasp.model;
+
+import java.util.Arrays;
+
+public class ContactMap {
+	private double maxRadius;
+	private int[] start;       // start[r] .. start[r+1] index neighbour and distance
+	private int[] neighbour;   // neighbour rows, in chain order
+	private double[] distance; // distance to each neighbour
+
+	/**
+	 * Build the contact map for a chain.
+	 *
+	 * @param residues the residues in the chain
+	 * @param grid a spatial index over the residues
+	 * @param maxRadius the largest radius we'll be asked about
+	 */
+	public ContactMap(ResidueTable residues, ResidueGrid grid, double maxRadius) {
+		int count = residues.size();
+		this.maxRadius = maxRadius;
+		start = new int[count+1];
+		neighbour = new int[count*16];
+		distance = new double[count*16];
+
+		int[] found = new int[count];
+		int total = 0;
+		for (int row = 0; row < count; row++) {
+			Location center = new Location(residues.getX(row), residues.getY(row), residues.getZ(row));
+			int n = grid.findWithin(center, maxRadius, found);
+			Arrays.sort(found, 0, n);
+			if (total+n > neighbour.length) {
+				int size = Math.max(total+n, neighbour.length*2);
+				neighbour = Arrays.copyOf(neighbour, size);
+				distance = Arrays.copyOf(distance, size);
+			}
+			for (int i = 0; i < n; i++) {
+				int r = found[i];
+				neighbour[total] = r;
+				// Measured exactly as Residue.dist does it
+				distance[total] = Math.sqrt(Math.pow((residues.getX(r) - residues.getX(row)), 2) +
+				                            Math.pow((residues.getY(r) - residues.getY(row)), 2) +
+				                            Math.pow((residues.getZ(r) - residues.getZ(row)), 2));
+				total++;
+			}
+			start[row+1] = total;
+		}
+		neighbour = Arrays.copyOf(neighbour, total);
+		distance = Arrays.copyOf(distance, total);
+	}
+
+	/**
+	 * Create a contact map from data we've already got (from the cache).
+	 */
+	ContactMap(double maxRadius, int[] start, int[] neighbour, double[] distance) {
+		this.maxRadius = maxRadius;
+		this.start = start;
+		this.neighbour = neighbour;
+		this.distance = distance;
+	}
+
+	public double getMaxRadius() { return maxRadius; }
+
+	/**
+	 * Return the number of residues in the chain.
+	 */
+	public int size() { return start.length-1; }
+
+	/**
+	 * Find the residues within <i>radius</i> of a residue.  This gives exactly the
+	 * same answer as {@link Residue#dist(Residue)} &lt;= radius.
+	 *
+	 * @param row the residue
+	 * @param radius the search radius (no more than the maximum radius)
+	 * @param found where to put the rows of the residues we find
+	 * @param distances if not null, where to put their distances
+	 * @return the number of residues found.  They are in chain order.
+	 */
+	public int findWithin(int row, double radius, int[] found, double[] distances) {
+		if (radius > maxRadius)
+			throw new IllegalArgumentException("Radius "+radius+" is beyond the contact map radius "+maxRadius);
+		int count = 0;
+		for (int n = start[row]; n < start[row+1]; n++) {
+			if (distance[n] <= radius) {
+				if (distances != null) distances[count] = distance[n];
+				found[count++] = neighbour[n];
+			}
+		}
+		return count;
+	}
+
+	int getStart(int row) { return start[row]; }
+	int getNeighbour(int n) { return neighbour[n]; }
+	double getDistance(int n) { return distance[n]; }
+}
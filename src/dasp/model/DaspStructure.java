@@ -30,19 +30,11 @@
 
 package dasp.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-
-import org.biojava.bio.structure.AminoAcid;
-import org.biojava.bio.structure.Chain;
-import org.biojava.bio.structure.Group;
-import org.biojava.bio.structure.Structure;
-import org.biojava.bio.structure.io.PDBFileReader;
 
 /**
  * DaspStructure is the main class that contains information about a PDB
@@ -50,11 +42,17 @@ import org.biojava.bio.structure.io.PDBFileReader;
  */
 public class DaspStructure {
 	String databasePrefix = null; // A path to the PDB file hierarchy
-	List<Residue> residues = null; // the residues for this structure
-	Map<String,Residue> residueMap = null; // the residues for this structure
+	ResidueTable table = null; // the residue data for this structure, as parallel arrays
+	List<Residue> residues = null; // the residues for this structure (views onto the table)
 	String chainID = null; // the chain ID
 	String pdbFile = null;
     int nextResIdx = -1; //the enumerator for the nextResidue Method
+	static StructureCache cache = null; // optional cache of parsed structures
+	static StructurePrefetcher prefetcher = null; // optional source of structure files already read
+	ResidueGrid grid = null; // spatial index over the residue centers, built when first needed
+	static double contactRadius = 0.0; // build contact maps out to this radius (0 for none)
+	ContactMap contacts = null; // residue neighbours, built when first needed
+	File structureFile = null; // the file we read the structure from
 
 	/**
 	 * Create a new structure from a pdb file.  If there is a file separator
@@ -89,17 +87,47 @@ public class DaspStructure {
 		getPDB(pdbFile, pdbDatabase);
 	}
 
+	/**
+	 * Use a disk cache for the residue data we read from PDB files.
+	 *
+	 * @param cacheDirectory the directory that holds the cache, or null to not use a cache
+	 * @throws IOException if the cache directory can't be created
+	 */
+	public static void setCacheDirectory(File cacheDirectory) throws IOException {
+		if (cacheDirectory == null)
+			cache = null;
+		else
+			cache = new StructureCache(cacheDirectory);
+	}
+
+	/**
+	 * Take structure files from a prefetcher rather than reading them ourselves
+	 * (when it has them).
+	 *
+	 * @param structurePrefetcher the prefetcher, or null to always read the files
+	 */
+	public static void setPrefetcher(StructurePrefetcher structurePrefetcher) {
+		prefetcher = structurePrefetcher;
+	}
+
+	/**
+	 * Use contact maps (the neighbours of each residue) out to a maximum radius
+	 * to find the residues near the key residues.  The maps are kept in the cache,
+	 * if there is one.
+	 *
+	 * @param maxRadius the largest radius the contact maps cover, or 0 to not use contact maps
+	 */
+	public static void setContactRadius(double maxRadius) {
+		contactRadius = maxRadius;
+	}
+
 	/**
 	 * Return the amino acid sequence for this PDB file.
 	 *
 	 * @return the sequence
 	 */
 	public String getSequence() {
-		String sequence = "";
-		for (Residue r: residues) {
-			sequence += r.getAA();
-		}
-		return sequence;
+		return table.getSequence();
 	}
     
     /**
@@ -152,6 +180,46 @@ public class DaspStructure {
 		 */
 		public List<Residue> getResidues() { return residues; }
     
+	/**
+	 * Return a spatial index over the residue centers.  The grid is built the
+	 * first time it is asked for, using the given cell size; it answers queries
+	 * of any radius after that.
+	 *
+	 * @param cellSize the cell size to use if we have to build the grid
+	 * @return the grid
+	 */
+	public synchronized ResidueGrid getGrid(double cellSize) {
+		if (grid == null)
+			grid = new ResidueGrid(table, cellSize);
+		return grid;
+	}
+
+	/**
+	 * Return the contact map for this chain, loading it from the cache or building
+	 * it the first time it is asked for.
+	 *
+	 * @return the contact map, or null if we aren't using contact maps
+	 */
+	public synchronized ContactMap getContacts() {
+		if (contacts != null || !(contactRadius > 0))
+			return contacts;
+
+		if (cache != null)
+			contacts = cache.loadContacts(structureFile, chainID, contactRadius);
+		if (contacts == null || contacts.size() != table.size()) {
+			contacts = new ContactMap(table, getGrid(contactRadius), contactRadius);
+			if (cache != null) {
+				try {
+					cache.storeContacts(structureFile, chainID, contacts);
+				} catch (IOException e) {
+					// Not fatal: we'll just build it again next time
+					System.err.println("Unable to cache contacts for "+structureFile+": "+e.getMessage());
+				}
+			}
+		}
+		return contacts;
+	}
+    
     /**
      * Enumerates through sequence of residues and returns the next Residue object.
      *
@@ -214,8 +282,9 @@ public class DaspStructure {
 
 		// System.out.println("Residue string: "+residueStr+" aa code = "+aaCode);
 		// Get the residue from our list
-		Residue res = residueMap.get(residueStr);
-		if (aaCode == 'X' || res.getAA() == Character.toUpperCase(aaCode))
+		int index = table.indexOf(residueStr);
+		Residue res = index < 0 ? null : residues.get(index);
+		if (res == null || aaCode == 'X' || res.getAA() == Character.toUpperCase(aaCode))
 			return res;
 
 		// AA code didn't match
@@ -223,8 +292,9 @@ public class DaspStructure {
 	}
 
 	public Residue getResidue(int index) {
-		if (residueMap.containsKey(String.valueOf(index)))
-			return residueMap.get(String.valueOf(index));
+		int row = table.indexOf(String.valueOf(index));
+		if (row >= 0)
+			return residues.get(row);
 		return null;
 	}
 
@@ -239,52 +309,68 @@ public class DaspStructure {
 	 * @throws IOException on either read or parsing errors
 	 */
 	private void getPDB(String fileName, File pdbDatabase) throws IOException {
-		File pdbFile = new File(fileName);
-		String filePath = null;
-		if (!pdbFile.isAbsolute()) {
-			// Need to figure out the prefix and find the file
-			filePath = findPDBPath(fileName, pdbDatabase);
-		} else {
-			filePath = pdbFile.getPath();;
-		}
+		String filePath = resolvePath(fileName, pdbDatabase);
+		structureFile = new File(filePath);
 		// System.out.println("getPDB: "+filePath);
 
-		PDBFileReader pdbreader = new PDBFileReader();
-		try {
-			// System.out.println("Getting structure: "+filePath);
-			Structure struct = pdbreader.getStructure(filePath);
-			Chain chain = null;
-
-			if (chainID != null && struct.hasChain(chainID)) {
-				// System.out.println("Getting chain: "+chainID);
-				chain = struct.getChainByPDB(chainID);
-			} else {
-				chain = struct.getChain(0);
+		StructurePrefetcher fetched = prefetcher;
+		if (cache != null) {
+			ResidueTable cached = cache.load(new File(filePath), chainID);
+			if (cached != null) {
+				if (fetched != null) fetched.forget(new File(filePath));
+				setResidues(cached);
+				return;
 			}
+		}
 
-			residues = new ArrayList();
-			residueMap = new HashMap();
-			for (Group g: chain.getAtomGroups()) {
-				// System.out.println("Got group "+g);
-				try {
-					Residue r = new Residue(g);
-					residues.add(r);
-					r.setIndex(residues.size()-1);
-					// System.out.println("Read residue: "+r+" position: "+(residues.size()-1));
-					residueMap.put(g.getPDBCode(),r);
-				} catch (Exception e) {
-					// Not an amino acid
-				}
-			}
+		try {
+			// Stream just the chain we want rather than building a whole BioJava Structure
+			PDBChainReader reader = new PDBChainReader(chainID);
+			byte[] data = fetched == null ? null : fetched.take(new File(filePath));
+			if (data != null)
+				setResidues(reader.read(filePath, new ByteArrayInputStream(data)));
+			else
+				setResidues(reader.read(new File(filePath)));
 		} catch (Exception e) {
 			throw new IOException("Can't read PDB file "+filePath+": "+e.getMessage());
 		}
+
+		if (cache != null) {
+			try {
+				cache.store(new File(filePath), chainID, table);
+			} catch (IOException e) {
+				// Not fatal: we'll just parse the file again next time
+				System.err.println("Unable to cache "+filePath+": "+e.getMessage());
+			}
+		}
 	}
 
-	private String findPDBPath(String fileName, File pdbDatabase) {
+	/**
+	 * Figure out which file holds a structure.
+	 *
+	 * @param fileName the pdb identifier or path to the pdb file
+	 * @param pdbDatabase the pdb database directory
+	 * @return the path to the file
+	 */
+	static String resolvePath(String fileName, File pdbDatabase) {
+		File pdbFile = new File(fileName);
+		if (!pdbFile.isAbsolute()) {
+			// Need to figure out the prefix and find the file
+			return findPDBPath(fileName, pdbDatabase);
+		}
+		return pdbFile.getPath();
+	}
+
+	private void setResidues(ResidueTable residueTable) {
+		table = residueTable;
+		residues = table.getResidues();
+	}
+
+	private static String findPDBPath(String fileName, File pdbDatabase) {
 		// A PDB file name could be "pdbnmmp.ent" or "pdbnmmp" or "nmmp" 
 		// where n is a number, mm is a two letter index, and p is either a
-		// letter or a number.
+		// letter or a number.  Like the wwPDB distribution, the mm directory
+		// might hold pdbnmmp.ent, pdbnmmp.ent.gz, nmmp.cif.gz or nmmp.cif.
 		String filePath = pdbDatabase.getPath();
 		// Make the filename lower case (convention)
 		fileName = fileName.toLowerCase();
@@ -295,14 +381,26 @@ public class DaspStructure {
 
 		filePath = filePath + "/" + fileName.substring(indexOffset, indexOffset+2) + "/";
 
-        if (indexOffset == 1)
-			filePath = filePath + "pdb";
+		String id = fileName.substring(indexOffset-1);
+		String extension = "";
+		if (id.indexOf('.') >= 0) {
+			extension = id.substring(id.indexOf('.'));
+			id = id.substring(0, id.indexOf('.'));
+		}
 
-		filePath = filePath + fileName;
+		// If we were told which file to use, use it
+		if (extension.startsWith(".cif"))
+			return filePath + id + extension;
+		if (extension.startsWith(".ent"))
+			return filePath + "pdb" + id + extension;
 
-		if (!fileName.endsWith(".ent"))
-			filePath = filePath + ".ent";
+		String[] candidates = {"pdb"+id+".ent", "pdb"+id+".ent.gz", id+".cif.gz", id+".cif"};
+		for (String candidate: candidates) {
+			if (new File(filePath + candidate).exists())
+				return filePath + candidate;
+		}
 
-		return filePath;
+		// Not there: let the reader complain about the name we've always used
+		return filePath + candidates[0];
 	}
 }
@@ -0,0 +1,22 @@
+/**
+ * FragmentSequence is the sequence of a fragment in both cases, built once so
+ * that asking a fragment for its sequence doesn't make a new string each time.
+ * It never changes once it's made, so a fragment can hand one out to other
+ * threads through a plain field and they always see both strings.
+ */
+
+package dasp.model;
+
+class FragmentSequence {
+	private final String upper;
+	private final String lower;
+
+	FragmentSequence(String sequence) {
+		upper = sequence.toUpperCase();
+		lower = upper.toLowerCase();
+	}
+
+	String get(boolean toUpper) {
+		return toUpper ? upper : lower;
+	}
+}
@@ -0,0 +1,482 @@
+/**
+ * PDBChainReader pulls the residues of a single chain out of a structure file
+ * without building a BioJava Structure.  It streams the atom records of the first
+ * model, and as it goes it sums the coordinates of the atoms in each residue into
+ * a {@link ResidueTable}, so all that is left at the end is the centers.  Residues are
+ * split the same way the BioJava parser splits groups (a new residue starts whenever
+ * the residue number/insertion code or the chain changes), and we keep the requested
+ * chain, or the first chain if the requested one isn't there.
+ *
+ * Both PDB and mmCIF files can be read, and either may be gzipped.  For mmCIF files
+ * we only pick out the few _atom_site columns we need, using the author chain and
+ * residue numbering so that residue IDs mean the same thing they do in PDB files.
+ */
+
+package dasp.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+public class PDBChainReader {
+	private String chainID = null;
+	private ChainResidues firstChain = null;
+	private ChainResidues requestedChain = null;
+
+	private InputStream input = null;
+	private byte[] buffer = new byte[65536];
+	private int bufferLength = 0;
+	private int bufferPosition = 0;
+	private byte[] line = new byte[128];
+	private int lineLength = 0;
+
+	// The residue we are currently summing atoms into
+	private byte[] groupChain = new byte[8];
+	private int groupChainLength = -1;
+	private byte[] groupCode = new byte[16];
+	private int groupCodeLength = -1;
+	private Character groupAA = null;
+	private double xSum, ySum, zSum;
+	private int atomCount = 0;
+
+	// The _atom_site columns we use from mmCIF files
+	private static final String[] CIF_TAGS = {
+		"_atom_site.Cartn_x", "_atom_site.Cartn_y", "_atom_site.Cartn_z",
+		"_atom_site.auth_asym_id", "_atom_site.label_asym_id",
+		"_atom_site.auth_seq_id", "_atom_site.label_seq_id", "_atom_site.pdbx_PDB_ins_code",
+		"_atom_site.auth_comp_id", "_atom_site.label_comp_id",
+		"_atom_site.pdbx_PDB_model_num"
+	};
+	private static final int CIF_X = 0, CIF_Y = 1, CIF_Z = 2;
+	private static final int CIF_AUTH_ASYM = 3, CIF_LABEL_ASYM = 4;
+	private static final int CIF_AUTH_SEQ = 5, CIF_LABEL_SEQ = 6, CIF_INS_CODE = 7;
+	private static final int CIF_AUTH_COMP = 8, CIF_LABEL_COMP = 9;
+	private static final int CIF_MODEL = 10;
+
+	private byte[][] field = new byte[CIF_TAGS.length][16];
+	private int[] fieldLength = new int[CIF_TAGS.length];
+	private boolean[] haveField = new boolean[CIF_TAGS.length];
+	private byte[] firstModel = null;
+
+	/**
+	 * Create a reader for a chain.
+	 *
+	 * @param chainID the chain to read, or null for the first chain
+	 */
+	public PDBChainReader(String chainID) {
+		this.chainID = chainID;
+	}
+
+	/**
+	 * Read the residues for our chain from a structure file.  Files ending
+	 * in ".gz" are decompressed as we read them, and files ending in ".cif" (or
+	 * ".cif.gz") are read as mmCIF.  Anything else is taken to be a PDB file.
+	 *
+	 * @param structureFile the PDB or mmCIF file
+	 * @return the residues
+	 * @throws IOException on read errors, or if there are no residues in the file
+	 */
+	public ResidueTable read(File structureFile) throws IOException {
+		InputStream input = new FileInputStream(structureFile);
+		try {
+			return read(structureFile.getName(), input);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Read the residues for our chain from the contents of a structure file
+	 * (which we might have read into memory already).  The file name tells us
+	 * how to read it, as for {@link #read(File)}.  The stream is not closed.
+	 *
+	 * @param fileName the name of the PDB or mmCIF file
+	 * @param input the contents of the file
+	 * @return the residues
+	 * @throws IOException on read errors, or if there are no residues in the file
+	 */
+	public ResidueTable read(String fileName, InputStream input) throws IOException {
+		String name = fileName.toLowerCase();
+		if (name.endsWith(".gz")) {
+			input = new GZIPInputStream(input, 65536);
+			name = name.substring(0, name.length()-3);
+		}
+		if (name.endsWith(".cif"))
+			return readCif(input);
+		return read(input);
+	}
+
+	/**
+	 * Read the residues for our chain from a stream of PDB records.  The stream
+	 * is not closed.
+	 *
+	 * @param input the PDB records
+	 * @return the residues
+	 * @throws IOException on read errors, or if there are no residues in the input
+	 */
+	public ResidueTable read(InputStream input) throws IOException {
+		this.input = input;
+		while (readLine()) {
+			if (startsWith("ATOM  ") || startsWith("HETATM")) {
+				pdbAtom();
+			} else if (startsWith("ENDMDL")) {
+				// We only want the first model
+				break;
+			}
+		}
+		return finish();
+	}
+
+	/**
+	 * Read the residues for our chain from an mmCIF file.  The stream is not
+	 * closed.
+	 *
+	 * @param input the mmCIF data
+	 * @return the residues
+	 * @throws IOException on read errors, or if there are no residues in the input
+	 */
+	public ResidueTable readCif(InputStream input) throws IOException {
+		this.input = input;
+
+		// Map from the position of each column in the loop to our field
+		int[] columnField = new int[32];
+		int columnCount = 0;
+		boolean inHeader = false;
+		boolean atomSite = false;
+		int column = 0;
+
+		while (readLine()) {
+			if (startsWith("loop_")) {
+				if (atomSite) break;
+				inHeader = true;
+				columnCount = 0;
+				continue;
+			}
+			if (inHeader) {
+				if (lineLength > 0 && line[0] == '_') {
+					int end = 0;
+					while (end < lineLength && line[end] > ' ') end++;
+					String tag = new String(line, 0, end, "ISO-8859-1");
+					if (tag.startsWith("_atom_site."))
+						atomSite = true;
+					if (columnCount == columnField.length)
+						columnField = Arrays.copyOf(columnField, columnCount*2);
+					columnField[columnCount++] = Arrays.asList(CIF_TAGS).indexOf(tag);
+					continue;
+				}
+				inHeader = false;
+				if (!atomSite) continue;
+				for (int c = 0; c < columnCount; c++) {
+					if (columnField[c] >= 0) haveField[columnField[c]] = true;
+				}
+				if (!haveField[CIF_X] || !haveField[CIF_Y] || !haveField[CIF_Z])
+					throw new IOException("no coordinates in _atom_site");
+			}
+			if (!atomSite)
+				continue;
+
+			// We're in the _atom_site rows
+			if (lineLength == 0 || line[0] == '#')
+				continue;
+			if (line[0] == '_' || startsWith("data_") || startsWith("save_"))
+				break;
+			if (line[0] == ';') {
+				// A multi-line text value: skip it, it isn't one we use
+				while (readLine() && !(lineLength > 0 && line[0] == ';'))
+					;
+				if (++column == columnCount) {
+					column = 0;
+					if (!cifAtom()) break;
+				}
+				continue;
+			}
+
+			int i = 0;
+			while (true) {
+				while (i < lineLength && line[i] <= ' ') i++;
+				if (i == lineLength) break;
+				int start = i, end;
+				if (line[i] == '\'' || line[i] == '"') {
+					// A quoted value ends at a matching quote followed by white space
+					byte quote = line[i++];
+					start = i;
+					while (i < lineLength && !(line[i] == quote && (i+1 == lineLength || line[i+1] <= ' '))) i++;
+					end = i;
+					if (i < lineLength) i++;
+				} else {
+					while (i < lineLength && line[i] > ' ') i++;
+					end = i;
+				}
+
+				// Only keep the values we need
+				int f = columnField[column];
+				if (f >= 0) {
+					if (field[f].length < end - start)
+						field[f] = new byte[end - start];
+					System.arraycopy(line, start, field[f], 0, end - start);
+					fieldLength[f] = end - start;
+				}
+				if (++column == columnCount) {
+					column = 0;
+					if (!cifAtom()) return finish();
+				}
+			}
+		}
+		return finish();
+	}
+
+	/**
+	 * Handle a PDB ATOM or HETATM record.
+	 */
+	private void pdbAtom() throws IOException {
+		// Like BioJava, we just skip records we can't make sense of
+		if (lineLength < 54)
+			return;
+		double x = parseCoordinate(line, 30, 38);
+		double y = parseCoordinate(line, 38, 46);
+		double z = parseCoordinate(line, 46, 54);
+		if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z))
+			return;
+
+		int codeStart = 22, codeEnd = 27;
+		while (codeStart < codeEnd && line[codeStart] == ' ') codeStart++;
+		while (codeEnd > codeStart && line[codeEnd-1] == ' ') codeEnd--;
+
+		addAtom(line, 21, 1, line, codeStart, codeEnd - codeStart, line, 17, 3, x, y, z);
+	}
+
+	/**
+	 * Handle a row of the mmCIF _atom_site loop.
+	 *
+	 * @return false once we've run past the first model
+	 */
+	private boolean cifAtom() throws IOException {
+		if (haveField[CIF_MODEL]) {
+			byte[] model = Arrays.copyOf(field[CIF_MODEL], fieldLength[CIF_MODEL]);
+			if (firstModel == null)
+				firstModel = model;
+			else if (!Arrays.equals(firstModel, model))
+				return false;
+		}
+
+		double x = parseCoordinate(field[CIF_X], 0, fieldLength[CIF_X]);
+		double y = parseCoordinate(field[CIF_Y], 0, fieldLength[CIF_Y]);
+		double z = parseCoordinate(field[CIF_Z], 0, fieldLength[CIF_Z]);
+		if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z))
+			return true;
+
+		int chain = haveField[CIF_AUTH_ASYM] ? CIF_AUTH_ASYM : CIF_LABEL_ASYM;
+		int seq = haveField[CIF_AUTH_SEQ] ? CIF_AUTH_SEQ : CIF_LABEL_SEQ;
+		int comp = haveField[CIF_AUTH_COMP] ? CIF_AUTH_COMP : CIF_LABEL_COMP;
+		if (!haveField[chain] || !haveField[seq] || !haveField[comp])
+			throw new IOException("missing _atom_site columns");
+
+		// The residue code is the number with the insertion code (if any) tacked on
+		int codeLength = fieldLength[seq];
+		if (haveField[CIF_INS_CODE] && !isNull(CIF_INS_CODE)) {
+			int insLength = fieldLength[CIF_INS_CODE];
+			if (field[seq].length < codeLength + insLength)
+				field[seq] = Arrays.copyOf(field[seq], codeLength + insLength);
+			System.arraycopy(field[CIF_INS_CODE], 0, field[seq], codeLength, insLength);
+			codeLength += insLength;
+		}
+
+		addAtom(field[chain], 0, fieldLength[chain], field[seq], 0, codeLength,
+		        field[comp], 0, fieldLength[comp], x, y, z);
+		return true;
+	}
+
+	private boolean isNull(int f) {
+		return fieldLength[f] == 1 && (field[f][0] == '?' || field[f][0] == '.');
+	}
+
+	/**
+	 * Add an atom to the current residue, or start a new residue if the chain
+	 * or residue code has changed.
+	 */
+	private void addAtom(byte[] chain, int chainStart, int chainLength,
+	                     byte[] code, int codeStart, int codeLength,
+	                     byte[] name, int nameStart, int nameLength,
+	                     double x, double y, double z) throws IOException {
+		if (!same(groupChain, groupChainLength, chain, chainStart, chainLength) ||
+		    !same(groupCode, groupCodeLength, code, codeStart, codeLength)) {
+			closeGroup();
+			if (groupChain.length < chainLength)
+				groupChain = new byte[chainLength];
+			System.arraycopy(chain, chainStart, groupChain, 0, chainLength);
+			groupChainLength = chainLength;
+			if (groupCode.length < codeLength)
+				groupCode = new byte[codeLength];
+			System.arraycopy(code, codeStart, groupCode, 0, codeLength);
+			groupCodeLength = codeLength;
+			// As in BioJava, the residue name comes from the first atom
+			groupAA = Residue.getAA(new String(name, nameStart, nameLength, "ISO-8859-1"));
+			xSum = ySum = zSum = 0.0;
+			atomCount = 0;
+		}
+
+		xSum += x;
+		ySum += y;
+		zSum += z;
+		atomCount++;
+	}
+
+	/**
+	 * Finish the current residue and, if it is an amino acid in a chain we
+	 * care about, add it to that chain.
+	 */
+	private void closeGroup() throws IOException {
+		if (atomCount == 0)
+			return;
+
+		if (firstChain == null)
+			firstChain = new ChainResidues(new String(groupChain, 0, groupChainLength, "ISO-8859-1"));
+
+		ChainResidues chain = null;
+		if (groupChainIs(firstChain.name)) {
+			chain = firstChain;
+		} else if (chainID != null && groupChainIs(chainID)) {
+			if (requestedChain == null)
+				requestedChain = new ChainResidues(chainID);
+			chain = requestedChain;
+		}
+
+		if (chain != null && groupAA != null) {
+			chain.table.add(groupAA.charValue(), new String(groupCode, 0, groupCodeLength, "ISO-8859-1"),
+			                xSum/atomCount, ySum/atomCount, zSum/atomCount);
+		}
+		atomCount = 0;
+	}
+
+	private ResidueTable finish() throws IOException {
+		closeGroup();
+		ChainResidues chain = requestedChain != null ? requestedChain : firstChain;
+		if (chain == null)
+			throw new IOException("no atoms found");
+		return chain.table;
+	}
+
+	private boolean groupChainIs(String name) {
+		if (name.length() != groupChainLength)
+			return false;
+		for (int i = 0; i < groupChainLength; i++) {
+			if (groupChain[i] != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean same(byte[] a, int aLength, byte[] b, int bStart, int bLength) {
+		if (aLength != bLength)
+			return false;
+		for (int i = 0; i < aLength; i++) {
+			if (a[i] != b[bStart+i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a coordinate.  The usual "-123.456" form is done by hand: the digits
+	 * make an exact integer, and a single division by an exact power of ten rounds
+	 * the same way Double.parseDouble does.  Anything else goes to Double.parseDouble.
+	 *
+	 * @return the coordinate, or NaN if it isn't a number
+	 */
+	private static double parseCoordinate(byte[] text, int start, int end) throws IOException {
+		int i = start;
+		while (i < end && text[i] == ' ') i++;
+		boolean negative = false;
+		if (i < end && (text[i] == '-' || text[i] == '+')) {
+			negative = text[i] == '-';
+			i++;
+		}
+		long digits = 0;
+		int decimals = -1;
+		int digitCount = 0;
+		for (; i < end; i++) {
+			byte c = text[i];
+			if (c >= '0' && c <= '9') {
+				digits = digits*10 + (c - '0');
+				digitCount++;
+				if (decimals >= 0) decimals++;
+			} else if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				break;
+			}
+		}
+		while (i < end && text[i] == ' ') i++;
+		if (i != end || digitCount == 0 || digitCount > 15) {
+			try {
+				return Double.parseDouble(new String(text, start, end - start, "ISO-8859-1").trim());
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		double value = decimals > 0 ? digits / POWERS_OF_TEN[decimals] : (double)digits;
+		return negative ? -value : value;
+	}
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	private boolean startsWith(String record) {
+		if (lineLength < record.length())
+			return false;
+		for (int i = 0; i < record.length(); i++) {
+			if (line[i] != record.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next line into our line buffer, without the line terminator.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean readLine() throws IOException {
+		lineLength = 0;
+		int c = read();
+		if (c < 0)
+			return false;
+		while (c >= 0 && c != '\n') {
+			if (lineLength == line.length)
+				line = Arrays.copyOf(line, line.length*2);
+			line[lineLength++] = (byte)c;
+			c = read();
+		}
+		if (lineLength > 0 && line[lineLength-1] == '\r')
+			lineLength--;
+		return true;
+	}
+
+	private int read() throws IOException {
+		if (bufferPosition == bufferLength) {
+			bufferLength = input.read(buffer, 0, buffer.length);
+			bufferPosition = 0;
+			if (bufferLength <= 0) {
+				bufferLength = 0;
+				return -1;
+			}
+		}
+		return buffer[bufferPosition++] & 0xff;
+	}
+
+	/**
+	 * The residues we've kept for one chain.
+	 */
+	static class ChainResidues {
+		final String name;
+		final ResidueTable table = new ResidueTable(256);
+
+		ChainResidues(String name) {
+			this.name = name;
+		}
+	}
+}
@@ -118,7 +118,8 @@ public class PSSM implements Comparable {
 	 */
 	private void createPSSM(boolean includeX) {
 		int alignmentLength = alignment.getAlignmentWidth();
-		int numSeqs = alignment.getAlignment().size();
+		AlignmentRows rows = alignment.getAlignmentRows();
+		int numSeqs = rows.size();
 
 		//initilize the PSSM matrix to zero. k = rows (AAs), m = columns(motif positions)
 		for(int aa = 0; aa < aaCount; aa++)
@@ -129,21 +130,22 @@ public class PSSM implements Comparable {
 					PSSMmatrix[aa][position] = PSEUDOCOUNT_WEIGHT*aaFreq[aa];
 
 		//ok, we are looping through each row of each column, so the first motif position is loop through all the way down followed by the second etc. Instead of looping through each column of each row.
-		for (String alignedString: alignment.getAlignment()) {
-			String upperString = alignedString.toUpperCase();
+		for (int row = 0; row < numSeqs; row++) {
+			byte[] alignedRow = rows.getRow(row);
 			for(int position = 0; position < alignmentLength; position++) {
-				char aa = upperString.charAt(position);
+				char aa = Character.toUpperCase((char)alignedRow[position]);
 				//if the cur char is not a -, Z or X then increment the corresponding PSSM location in that column
 				if (isAmino(aa))
 					PSSMmatrix[getAANum(aa)][position]++;
 			}
 		}
 
+		NumberFormat nf = NumberFormat.getNumberInstance();
+		nf.setMaximumFractionDigits(0);
+
 		//back to k = AAs and m = motif positions
 		for(int aa = 0; aa < aaCount; aa++) {
 			for(int position = 0; position < alignmentLength; position++){
-				NumberFormat nf = NumberFormat.getNumberInstance();
-				nf.setMaximumFractionDigits(0);
 				//PSEUDOCOUNT_WEIGHT is a global variable and is equal to 0.1
 				PSSMmatrix[aa][position] /= ((double)(PSEUDOCOUNT_WEIGHT + numSeqs));
 				if (PSSMmatrix[aa][position] > 0.0) {
@@ -7,6 +7,7 @@ import dasp.algorithms.Align;
 
 public class ProfileFragment extends Alignment {
 	List<Residue> fragResidues = null;
+	FragmentSequence sequence = null; // cached sequence, cleared when we add a residue
 
 	public ProfileFragment (Align alnMethod) {
 		fragResidues = new ArrayList();
@@ -16,6 +17,7 @@ public class ProfileFragment extends Alignment {
 	public void addFragRes(Residue r)
 	{
 		fragResidues.add(r);
+		sequence = null;
 	}
 	
 	public Residue getFragRes(int resIdx)
@@ -28,13 +30,15 @@ public class ProfileFragment extends Alignment {
 	}
 
 	public String getSequence(boolean toUpper) {
-		String seq = "";
-		for (Residue r: fragResidues) {
-			seq+=r.getAA();
+		FragmentSequence seq = sequence;
+		if (seq == null) {
+			StringBuilder residues = new StringBuilder(fragResidues.size());
+			for (Residue r: fragResidues) {
+				residues.append(r.getAA());
+			}
+			seq = new FragmentSequence(residues.toString());
+			sequence = seq;
 		}
-		if (toUpper)
-			return seq.toUpperCase();
-
-		return seq.toLowerCase();
+		return seq.get(toUpper);
 	}
 }
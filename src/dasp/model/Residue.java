@@ -9,27 +9,28 @@ package dasp.model;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.biojava.bio.structure.AminoAcid;
 import org.biojava.bio.structure.Atom;
 import org.biojava.bio.structure.Group;
 
 public class Residue {
 	private static Map<String,Character>aaMap = null;
-	private char aminoAcid = 'X';
-  private String PDBcode = null; //residue number+insertion code - these can be
-                           //non-sequential, so just use as a unique identifier.
-                           //This needs looking into.  What I really need is just the residue ID as a number.
-                           //in the code that uses this I pretend it is a number.
-	private Group thisGroup = null;
-	private int index = 0;
-	Location center = null;
+	private ResidueTable table = null; // the residue data lives here
+	private int index = 0;             // our row in the table
+
+	// Residues are created from many threads at once, so build the map up front
+	static {
+		initializeAAMap();
+	}
 	
+	/**
+	 * Create a residue from a BioJava group.  We only keep the amino acid, the
+	 * residue code and the center: the group (and its atoms) are not referenced
+	 * once we're done.
+	 *
+	 * @param g the group
+	 * @throws Exception if the group isn't an amino acid
+	 */
 	public Residue(Group g) throws Exception {
-		if (Residue.aaMap == null)
-			Residue.initializeAAMap();
-
-		thisGroup = g;
-
 		// Get the location
 		double xSum = 0.0;
 		double ySum = 0.0;
@@ -42,31 +43,54 @@ public class Residue {
 		if (oneLetterCode == null) 
 			throw new Exception(g.getPDBName()+" is not an amino acid");
 
-		aminoAcid = Residue.getAA(g.getPDBName()).charValue();
-		// System.out.println("Amino acid = "+aminoAcid);
-		PDBcode = g.getPDBCode();
-
-		// Just to make sure...
-		aminoAcid = Character.toUpperCase(aminoAcid);
-
 		for (Atom a: g.getAtoms()) {
 			xSum += a.getX();
 			ySum += a.getY();
 			zSum += a.getZ();
 		}
-		center = new Location(xSum/g.size(), ySum/g.size(), zSum/g.size());
+		table = new ResidueTable(1);
+		table.add(oneLetterCode.charValue(), g.getPDBCode(), xSum/g.size(), ySum/g.size(), zSum/g.size());
 	}
 
-	public void setIndex(int index) { this.index = index; }
+	/**
+	 * Create a stand-alone residue from data we've already extracted from a structure.
+	 *
+	 * @param aminoAcid the one letter amino acid code
+	 * @param pdbCode the PDB residue number (and insertion code)
+	 * @param center the geometric center of the residue
+	 */
+	public Residue(char aminoAcid, String pdbCode, Location center) {
+		table = new ResidueTable(1);
+		table.add(aminoAcid, pdbCode, center.getX(), center.getY(), center.getZ());
+	}
+
+	/**
+	 * Create a view of a row in a residue table.
+	 */
+	Residue(ResidueTable table, int index) {
+		this.table = table;
+		this.index = index;
+	}
+
+	/**
+	 * Return our position in the structure.
+	 *
+	 * @return the residue index
+	 */
 	public int getIndex() { return index; }
 
+	/**
+	 * Return the table that holds our data.
+	 */
+	ResidueTable getTable() { return table; }
+
 	public char getAA() {
-		return aminoAcid;
+		return table.getAA(index);
 	}
 
 	public Location getCenter()
 	{
-		return center;
+		return new Location(table.getX(index), table.getY(index), table.getZ(index));
 	}
 
 	/**
@@ -77,16 +101,18 @@ public class Residue {
 	 * @return the Euclidean distance between the 2 residue centers as a double value.
 	 */
 	public double dist(Residue r){
-		Location loc1 = getCenter();
-		Location loc2 = r.getCenter();
+		ResidueTable t1 = table, t2 = r.table;
+		int i1 = index, i2 = r.index;
 		
-		return Math.sqrt(Math.pow((loc2.getX() - loc1.getX()), 2) + 
-				Math.pow((loc2.getY() - loc1.getY()), 2) +
-				Math.pow((loc2.getZ() - loc1.getZ()), 2));
+		return Math.sqrt(Math.pow((t2.getX(i2) - t1.getX(i1)), 2) + 
+				Math.pow((t2.getY(i2) - t1.getY(i1)), 2) +
+				Math.pow((t2.getZ(i2) - t1.getZ(i1)), 2));
 	} //end dist
 
+	// The PDB code is the residue number+insertion code - these can be
+	// non-sequential, so just use as a unique identifier.
 	public String getPDBCode() {
-		return this.PDBcode;
+		return table.getPDBCode(index);
 	}
 
 	private static void initializeAAMap() {
@@ -125,7 +151,7 @@ public class Residue {
 		aaMap.put("+N",'N');
 	}
 
-	private static Character getAA(String threeLetter) {
+	static Character getAA(String threeLetter) {
 		if (aaMap.containsKey(threeLetter))
 			return aaMap.get(threeLetter);
 		return null;
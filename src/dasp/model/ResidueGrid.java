@@ -0,0 +1,133 @@
+/**
+ * ResidueGrid is a uniform grid over the residue centers of a structure, used to
+ * find the residues near a point without measuring the distance to every residue
+ * in the chain.  The residues in each cell are kept in one array, ordered by cell
+ * (compressed sparse row style), so a query only touches the cells that overlap
+ * the search sphere.
+ */
+
+package dasp.model;
+
+import java.util.Arrays;
+
+public class ResidueGrid {
+	// Keep the grid from getting silly for very small cells or very large structures
+	private static final int MAX_CELLS = 1 << 20;
+
+	private double cellSize;
+	private double minX, minY, minZ;
+	private int nx, ny, nz;
+	private double[] x, y, z;
+	private int[] cellStart;    // cellStart[c] .. cellStart[c+1] index cellResidue
+	private int[] cellResidue;  // residue indices, grouped by cell
+
+	/**
+	 * Build the grid.
+	 *
+	 * @param residues the residues, in structure order
+	 * @param cellSize the edge of each cell, usually the radius we'll be searching
+	 */
+	public ResidueGrid(ResidueTable residues, double cellSize) {
+		int count = residues.size();
+		x = new double[count];
+		y = new double[count];
+		z = new double[count];
+		double maxX = 0, maxY = 0, maxZ = 0;
+		for (int i = 0; i < count; i++) {
+			x[i] = residues.getX(i);
+			y[i] = residues.getY(i);
+			z[i] = residues.getZ(i);
+			if (i == 0 || x[i] < minX) minX = x[i];
+			if (i == 0 || y[i] < minY) minY = y[i];
+			if (i == 0 || z[i] < minZ) minZ = z[i];
+			if (i == 0 || x[i] > maxX) maxX = x[i];
+			if (i == 0 || y[i] > maxY) maxY = y[i];
+			if (i == 0 || z[i] > maxZ) maxZ = z[i];
+		}
+
+		this.cellSize = Math.max(cellSize, 1.0);
+		while (true) {
+			nx = (int)((maxX - minX) / this.cellSize) + 1;
+			ny = (int)((maxY - minY) / this.cellSize) + 1;
+			nz = (int)((maxZ - minZ) / this.cellSize) + 1;
+			if ((long)nx*ny*nz <= MAX_CELLS) break;
+			this.cellSize *= 2;
+		}
+
+		// Count the residues in each cell, then lay them out cell by cell
+		int[] cellOf = new int[count];
+		cellStart = new int[nx*ny*nz+1];
+		for (int i = 0; i < count; i++) {
+			cellOf[i] = cell(cellX(x[i]), cellY(y[i]), cellZ(z[i]));
+			cellStart[cellOf[i]+1]++;
+		}
+		for (int c = 0; c < nx*ny*nz; c++)
+			cellStart[c+1] += cellStart[c];
+		int[] next = Arrays.copyOf(cellStart, cellStart.length-1);
+		cellResidue = new int[count];
+		for (int i = 0; i < count; i++)
+			cellResidue[next[cellOf[i]]++] = i;
+	}
+
+	public double getCellSize() { return cellSize; }
+
+	/**
+	 * Find the residues whose centers are within <i>radius</i> of a point.  The
+	 * test gives exactly the same answer as {@link Residue#dist(Residue)} &lt;= radius:
+	 * we compare squared distances, and only take the square root for the rare
+	 * residue that is right on the edge.
+	 *
+	 * @param center the point
+	 * @param radius the search radius
+	 * @param found where to put the indices of the residues we find (must be big
+	 * enough to hold every residue)
+	 * @return the number of residues found.  They are in no particular order.
+	 */
+	public int findWithin(Location center, double radius, int[] found) {
+		if (!(radius >= 0) || x.length == 0)
+			return 0;
+		double cx = center.getX(), cy = center.getY(), cz = center.getZ();
+		double radius2 = radius*radius;
+		double inside = radius2*(1.0 - 1e-12);
+		double outside = radius2*(1.0 + 1e-12);
+
+		// Pad the box a little so rounding can't drop a residue on the edge
+		double reach = radius + 1e-6;
+		int x0 = Math.max(cellX(cx - reach), 0), x1 = Math.min(cellX(cx + reach), nx-1);
+		int y0 = Math.max(cellY(cy - reach), 0), y1 = Math.min(cellY(cy + reach), ny-1);
+		int z0 = Math.max(cellZ(cz - reach), 0), z1 = Math.min(cellZ(cz + reach), nz-1);
+
+		int count = 0;
+		for (int i = x0; i <= x1; i++) {
+			for (int j = y0; j <= y1; j++) {
+				for (int k = z0; k <= z1; k++) {
+					int c = cell(i, j, k);
+					for (int n = cellStart[c]; n < cellStart[c+1]; n++) {
+						int r = cellResidue[n];
+						double dx = x[r] - cx, dy = y[r] - cy, dz = z[r] - cz;
+						double d2 = dx*dx + dy*dy + dz*dz;
+						if (d2 <= inside || (d2 <= outside && onEdge(dx, dy, dz, radius)))
+							found[count++] = r;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Settle a residue that is right on the edge of the sphere by measuring it
+	 * exactly the way {@link Residue#dist(Residue)} does.
+	 */
+	private static boolean onEdge(double dx, double dy, double dz, double radius) {
+		return Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2) + Math.pow(dz, 2)) <= radius;
+	}
+
+	private int cellX(double v) { return (int)Math.floor((v - minX) / cellSize); }
+	private int cellY(double v) { return (int)Math.floor((v - minY) / cellSize); }
+	private int cellZ(double v) { return (int)Math.floor((v - minZ) / cellSize); }
+
+	private int cell(int i, int j, int k) {
+		return (i*ny + j)*nz + k;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * ResidueTable holds the residues of a chain as parallel arrays: the one letter
+ * code, the x, y and z of the geometric center, and the PDB residue code.  Looking
+ * a residue up by its code goes through a map from code to row, which is built the
+ * first time it's needed (once the table is complete).  The {@link Residue} objects
+ * handed out by {@link #getResidues()} are light views onto a row of the table.
+ */
+
+package dasp.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ResidueTable {
+	private int count = 0;
+	private char[] aa = null;
+	private double[] x = null;
+	private double[] y = null;
+	private double[] z = null;
+	private String[] code = null;
+	private Residue[] views = null;
+	private String sequence = null;    // built the first time it's asked for
+	private Map<String,Integer> rowByCode = null; // built the first time it's asked for
+
+	public ResidueTable(int capacity) {
+		capacity = Math.max(capacity, 1);
+		aa = new char[capacity];
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		code = new String[capacity];
+	}
+
+	/**
+	 * Add a residue to the end of the table.
+	 *
+	 * @param aminoAcid the one letter amino acid code
+	 * @param pdbCode the PDB residue number (and insertion code)
+	 * @param cx the x coordinate of the center of the residue
+	 * @param cy the y coordinate of the center of the residue
+	 * @param cz the z coordinate of the center of the residue
+	 */
+	public void add(char aminoAcid, String pdbCode, double cx, double cy, double cz) {
+		if (count == aa.length) {
+			int size = count*2;
+			aa = Arrays.copyOf(aa, size);
+			x = Arrays.copyOf(x, size);
+			y = Arrays.copyOf(y, size);
+			z = Arrays.copyOf(z, size);
+			code = Arrays.copyOf(code, size);
+		}
+		aa[count] = Character.toUpperCase(aminoAcid);
+		x[count] = cx;
+		y[count] = cy;
+		z[count] = cz;
+		code[count] = pdbCode;
+		count++;
+		sequence = null;
+		rowByCode = null;
+	}
+
+	public int size() { return count; }
+
+	public char getAA(int row) { return aa[row]; }
+	public double getX(int row) { return x[row]; }
+	public double getY(int row) { return y[row]; }
+	public double getZ(int row) { return z[row]; }
+
+	public String getPDBCode(int row) { return code[row]; }
+
+	/**
+	 * Find a residue by its PDB residue code.  If the code appears more than
+	 * once, we return the last one.
+	 *
+	 * @param pdbCode the residue number (and insertion code)
+	 * @return the row, or -1 if there is no such residue
+	 */
+	public int indexOf(String pdbCode) {
+		Integer row = getRowMap().get(pdbCode);
+		if (row == null)
+			return -1;
+		return row.intValue();
+	}
+
+	private synchronized Map<String,Integer> getRowMap() {
+		if (rowByCode == null) {
+			rowByCode = new HashMap<String,Integer>(count*2);
+			// Later rows replace earlier ones with the same code
+			for (int row = 0; row < count; row++)
+				rowByCode.put(code[row], row);
+		}
+		return rowByCode;
+	}
+
+	/**
+	 * Return the amino acid sequence of the residues in the table.  The string
+	 * is only built once.
+	 *
+	 * @return the sequence
+	 */
+	public String getSequence() {
+		String seq = sequence;
+		if (seq == null) {
+			seq = new String(aa, 0, count);
+			sequence = seq;
+		}
+		return seq;
+	}
+
+	/**
+	 * Return the amino acid sequence of a range of rows.
+	 *
+	 * @param start the first row
+	 * @param end one past the last row
+	 * @return the sequence
+	 */
+	public String getSequence(int start, int end) {
+		return getSequence().substring(start, end);
+	}
+
+	/**
+	 * Return the residues as a list.  There is exactly one {@link Residue} per
+	 * row, so residues can be compared by identity.
+	 *
+	 * @return the residues, in order
+	 */
+	public synchronized List<Residue> getResidues() {
+		if (views == null || views.length != count) {
+			views = new Residue[count];
+			for (int row = 0; row < count; row++)
+				views[row] = new Residue(this, row);
+		}
+		final Residue[] rows = views;
+		return new AbstractList<Residue>() {
+			public Residue get(int row) { return rows[row]; }
+			public int size() { return rows.length; }
+		};
+	}
+}
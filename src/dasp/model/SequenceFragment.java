@@ -13,6 +13,7 @@ public class SequenceFragment {
 	List<Residue> fragResidues = null;
 	Set<Residue> keySet = null;
 	Map<Integer, Residue> keyResidues = null;
+	FragmentSequence sequence = null; // cached sequence, cleared when we add a residue
 
 	public SequenceFragment() {
 		fragResidues = new ArrayList<Residue>();
@@ -23,6 +24,7 @@ public class SequenceFragment {
 	public void addFragRes(Residue r, Residue key, int keyNumber)
 	{
 		fragResidues.add(r);
+		sequence = null;
 		keySet.add(key);
 		if (keyNumber >=0 ) keyResidues.put(keyNumber, r);
 	}
@@ -43,14 +45,35 @@ public class SequenceFragment {
 	public String getSequence(boolean toUpper) {
 		if (fragResidues.size() == 0)
 			return "-";
-		String seq = "";
-		for (Residue r: fragResidues) {
-			seq+=r.getAA();
+		FragmentSequence seq = sequence;
+		if (seq == null) {
+			seq = new FragmentSequence(buildSequence());
+			sequence = seq;
+		}
+		return seq.get(toUpper);
+	}
+
+	/**
+	 * Fragments are almost always a run of consecutive residues from one chain,
+	 * in which case the sequence is just a slice of the chain's sequence.
+	 */
+	private String buildSequence() {
+		Residue first = fragResidues.get(0);
+		ResidueTable table = first.getTable();
+		int start = first.getIndex();
+		boolean contiguous = true;
+		for (int i = 1; i < fragResidues.size() && contiguous; i++) {
+			Residue r = fragResidues.get(i);
+			contiguous = r.getTable() == table && r.getIndex() == start+i;
 		}
-		if (toUpper)
-			return seq.toUpperCase();
+		if (contiguous)
+			return table.getSequence(start, start+fragResidues.size());
 
-		return seq.toLowerCase();
+		StringBuilder seq = new StringBuilder(fragResidues.size());
+		for (Residue r: fragResidues) {
+			seq.append(r.getAA());
+		}
+		return seq.toString();
 	}
 
 	public int getClosestKey() {
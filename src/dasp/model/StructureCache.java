@@ -0,0 +1,254 @@
+/**
+ * StructureCache keeps the parts of a parsed PDB chain that DASP actually uses
+ * (for each residue: the one letter code, the PDB residue code and the geometric
+ * center) in a compact binary file, so that repeat runs over the same clusters
+ * don't have to parse the PDB files again.  Each cache file is keyed by the path of
+ * the PDB file and the chain, and records the modification time and size of the PDB
+ * file so that we can tell when it is out of date.  Contact maps for a chain, if we
+ * build them, are kept next to the residues in the same way.
+ */
+
+package dasp.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+public class StructureCache {
+	private static final int MAGIC = 0x44415350; // "DASP"
+	private static final int VERSION = 1;
+
+	private File directory = null;
+
+	public StructureCache(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create cache directory "+directory);
+		this.directory = directory;
+	}
+
+	public File getDirectory() { return directory; }
+
+	/**
+	 * Load the residues for a chain from the cache.
+	 *
+	 * @param pdbFile the PDB file the residues came from
+	 * @param chainID the requested chain, or null for the first chain
+	 * @return the residues, or null if they aren't cached or the cache is out of date
+	 */
+	public ResidueTable load(File pdbFile, String chainID) {
+		File cacheFile = getCacheFile(pdbFile, chainID, ".dsc");
+		if (!cacheFile.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (!readHeader(in, pdbFile, chainID))
+				return null;
+
+			int count = in.readInt();
+			ResidueTable residues = new ResidueTable(count);
+			for (int index = 0; index < count; index++) {
+				char aa = in.readChar();
+				String pdbCode = in.readUTF();
+				residues.add(aa, pdbCode, in.readDouble(), in.readDouble(), in.readDouble());
+			}
+			return residues;
+		} catch (IOException e) {
+			// Treat a damaged cache file as a miss
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * See if the residues for a chain are in the cache, without loading them.
+	 *
+	 * @param pdbFile the PDB file the residues came from
+	 * @param chainID the requested chain, or null for the first chain
+	 * @return true if the chain is cached and the cache is up to date
+	 */
+	public boolean contains(File pdbFile, String chainID) {
+		File cacheFile = getCacheFile(pdbFile, chainID, ".dsc");
+		if (!cacheFile.exists())
+			return false;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1024));
+			return readHeader(in, pdbFile, chainID);
+		} catch (IOException e) {
+			return false;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Save the residues for a chain into the cache.  The file is written under a
+	 * temporary name and then renamed, so readers never see a partial file.
+	 *
+	 * @param pdbFile the PDB file the residues came from
+	 * @param chainID the requested chain, or null for the first chain
+	 * @param residues the residues to save
+	 */
+	public void store(File pdbFile, String chainID, ResidueTable residues) throws IOException {
+		File cacheFile = getCacheFile(pdbFile, chainID, ".dsc");
+		File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			writeHeader(out, pdbFile, chainID);
+			out.writeInt(residues.size());
+			for (int row = 0; row < residues.size(); row++) {
+				out.writeChar(residues.getAA(row));
+				out.writeUTF(residues.getPDBCode(row));
+				out.writeDouble(residues.getX(row));
+				out.writeDouble(residues.getY(row));
+				out.writeDouble(residues.getZ(row));
+			}
+			out.close();
+			out = null;
+			rename(tmpFile, cacheFile);
+		} finally {
+			close(out);
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Load the contact map for a chain from the cache.  A map built out to a
+	 * larger radius than we need is fine.
+	 *
+	 * @param pdbFile the PDB file the residues came from
+	 * @param chainID the requested chain, or null for the first chain
+	 * @param maxRadius the radius the contact map has to cover
+	 * @return the contact map, or null if it isn't cached or the cache is out of date
+	 */
+	public ContactMap loadContacts(File pdbFile, String chainID, double maxRadius) {
+		File cacheFile = getCacheFile(pdbFile, chainID, ".dsn");
+		if (!cacheFile.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (!readHeader(in, pdbFile, chainID))
+				return null;
+			double radius = in.readDouble();
+			if (!(radius >= maxRadius))
+				return null;
+
+			int count = in.readInt();
+			int[] start = new int[count+1];
+			for (int row = 0; row <= count; row++)
+				start[row] = in.readInt();
+			int[] neighbour = new int[start[count]];
+			double[] distance = new double[start[count]];
+			for (int n = 0; n < start[count]; n++) {
+				neighbour[n] = in.readInt();
+				distance[n] = in.readDouble();
+			}
+			return new ContactMap(radius, start, neighbour, distance);
+		} catch (IOException e) {
+			// Treat a damaged cache file as a miss
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Save the contact map for a chain into the cache.
+	 *
+	 * @param pdbFile the PDB file the residues came from
+	 * @param chainID the requested chain, or null for the first chain
+	 * @param contacts the contact map to save
+	 */
+	public void storeContacts(File pdbFile, String chainID, ContactMap contacts) throws IOException {
+		File cacheFile = getCacheFile(pdbFile, chainID, ".dsn");
+		File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			writeHeader(out, pdbFile, chainID);
+			out.writeDouble(contacts.getMaxRadius());
+			int count = contacts.size();
+			out.writeInt(count);
+			for (int row = 0; row <= count; row++)
+				out.writeInt(contacts.getStart(row));
+			for (int n = 0; n < contacts.getStart(count); n++) {
+				out.writeInt(contacts.getNeighbour(n));
+				out.writeDouble(contacts.getDistance(n));
+			}
+			out.close();
+			out = null;
+			rename(tmpFile, cacheFile);
+		} finally {
+			close(out);
+			tmpFile.delete();
+		}
+	}
+
+	private void writeHeader(DataOutputStream out, File pdbFile, String chainID) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(pdbFile.getAbsolutePath());
+		out.writeUTF(chainKey(chainID));
+		out.writeLong(pdbFile.lastModified());
+		out.writeLong(pdbFile.length());
+	}
+
+	private void rename(File tmpFile, File cacheFile) throws IOException {
+		if (!tmpFile.renameTo(cacheFile)) {
+			cacheFile.delete();
+			if (!tmpFile.renameTo(cacheFile))
+				throw new IOException("Can't rename "+tmpFile+" to "+cacheFile);
+		}
+	}
+
+	// Check that a cache file is for this chain of this version of the PDB file
+	private boolean readHeader(DataInputStream in, File pdbFile, String chainID) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			return false;
+		if (!in.readUTF().equals(pdbFile.getAbsolutePath()) || !in.readUTF().equals(chainKey(chainID)))
+			return false;
+		if (in.readLong() != pdbFile.lastModified() || in.readLong() != pdbFile.length())
+			return false;
+		return true;
+	}
+
+	private File getCacheFile(File pdbFile, String chainID, String suffix) {
+		String key = pdbFile.getAbsolutePath()+"#"+chainKey(chainID);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (byte b: hash)
+				name.append(String.format("%02x", b & 0xff));
+			return new File(directory, name.toString()+suffix);
+		} catch (Exception e) {
+			// SHA-1 and UTF-8 are always there
+			throw new RuntimeException(e);
+		}
+	}
+
+	private String chainKey(String chainID) {
+		return chainID == null ? "" : chainID;
+	}
+
+	private void close(Closeable stream) {
+		if (stream == null) return;
+		try {
+			stream.close();
+		} catch (IOException e) {}
+	}
+}
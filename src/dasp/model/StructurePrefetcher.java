@@ -0,0 +1,190 @@
+/**
+ * StructurePrefetcher reads the structure files for a list of input lines into
+ * memory on a small pool of I/O threads, a little ahead of the threads that parse
+ * them.  When the PDB mirror is on a network file system this keeps several reads
+ * in flight at once, and the parsing of one structure overlaps the reading of the
+ * next.  Files are only read a fixed number of files ahead of the parsers, so we
+ * don't end up holding the whole cluster in memory.
+ */
+
+package dasp.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class StructurePrefetcher {
+	private ExecutorService pool = null;
+	private int lookahead = 0;
+	private int inFlight = 0; // files that have been submitted but not yet taken
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private LinkedList<Entry> waiting = new LinkedList<Entry>();
+
+	// One structure file, which may be wanted by several input lines (chains)
+	private class Entry {
+		File file = null;
+		List<String> chains = new ArrayList<String>();
+		int users = 0;
+		Future<byte[]> data = null;
+	}
+
+	/**
+	 * Create a prefetcher.
+	 *
+	 * @param threads the number of threads to read files with
+	 * @param lookahead the most files to hold in memory at once
+	 */
+	public StructurePrefetcher(int threads, int lookahead) {
+		this.lookahead = Math.max(lookahead, 1);
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "structure-prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Add the structure from an input line ("structure#chain: residueList") to the
+	 * files to read.  Files are read in the order they are added.  Lines we can't
+	 * make sense of are ignored: the error will come out when the line is parsed.
+	 *
+	 * @param input the input line
+	 * @param database the path to the PDB database
+	 */
+	public void add(String input, File database) {
+		String[] structure = ActiveSiteSignature.parseStructure(input);
+		if (structure == null)
+			return;
+		File file = null;
+		try {
+			file = new File(DaspStructure.resolvePath(structure[0], database));
+		} catch (RuntimeException e) {
+			return;
+		}
+
+		synchronized (this) {
+			Entry entry = entries.get(file.getPath());
+			if (entry == null) {
+				entry = new Entry();
+				entry.file = file;
+				entries.put(file.getPath(), entry);
+				waiting.add(entry);
+			}
+			entry.chains.add(structure[1]);
+			entry.users++;
+			submit();
+		}
+	}
+
+	/**
+	 * Get the contents of a structure file.  This waits for the read to finish
+	 * if it has started, and returns null if it hasn't (or if it failed) so that
+	 * the caller can just read the file itself.
+	 *
+	 * @param file the structure file
+	 * @return the contents of the file, or null
+	 */
+	public byte[] take(File file) {
+		Future<byte[]> data = release(file, false);
+		if (data == null)
+			return null;
+		try {
+			return data.get();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tell the prefetcher we won't need a file after all (because we found the
+	 * structure in the cache).
+	 *
+	 * @param file the structure file
+	 */
+	public void forget(File file) {
+		release(file, true);
+	}
+
+	/**
+	 * Stop reading files.
+	 */
+	public synchronized void shutdown() {
+		waiting.clear();
+		entries.clear();
+		pool.shutdownNow();
+	}
+
+	private synchronized Future<byte[]> release(File file, boolean cancel) {
+		Entry entry = entries.get(file.getPath());
+		if (entry == null)
+			return null;
+		if (--entry.users == 0) {
+			entries.remove(file.getPath());
+			if (entry.data == null) {
+				waiting.remove(entry);
+			} else {
+				inFlight--;
+				if (cancel) entry.data.cancel(false);
+			}
+			submit();
+		}
+		return entry.data;
+	}
+
+	// Keep lookahead files in flight
+	private void submit() {
+		while (inFlight < lookahead && !waiting.isEmpty()) {
+			final Entry entry = waiting.removeFirst();
+			final List<String> chains = new ArrayList<String>(entry.chains);
+			inFlight++;
+			entry.data = pool.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					if (allCached(entry.file, chains))
+						return null;
+					return readFully(entry.file);
+				}
+			});
+		}
+	}
+
+	private static boolean allCached(File file, List<String> chains) {
+		StructureCache cache = DaspStructure.cache;
+		if (cache == null)
+			return false;
+		for (String chain: chains) {
+			if (!cache.contains(file, chain))
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			long length = file.length();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int)length : 65536);
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}